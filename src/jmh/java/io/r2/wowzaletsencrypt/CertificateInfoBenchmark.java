@@ -0,0 +1,46 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Domain name extraction from the leaf certificate: DER walker vs full X509Certificate decoding
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CertificateInfoBenchmark {
+
+    byte[] der;
+
+    @Setup
+    public void setUp() throws Exception {
+        der = new PemCertKey(new FileInputStream("src/test/resources/letsencrypt/multi-1.not-secure.r2.io/fullchain.pem"))
+                .getCertificateEncoded();
+    }
+
+    @Benchmark
+    public List<String> derWalker() throws Exception {
+        return CertificateInfo.parse(der).getDnsNames();
+    }
+
+    @Benchmark
+    public List<String> x509Certificate() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate x509 = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(der));
+        return x509.getSubjectAlternativeNames().stream()
+                .filter(ext -> ((Integer) ext.get(0)) == 2)
+                .map(ext -> (String) ext.get(1))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,45 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keystore encoding step of Converter.writeJKS: the direct JKS writer used for single entry keystores,
+ * compared to the KeyStore provider
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyStoreEncodeBenchmark {
+
+    Converter converter;
+    PemCertKey cert;
+    char[] password = Converter.DEFAULT_PASSWORD.toCharArray();
+
+    @Setup
+    public void setUp() throws Exception {
+        // nothing is read or written by the converter itself
+        converter = new Converter("src/test/resources/letsencrypt", "build");
+        cert = new PemCertKey(ByteBuffer.wrap(MultiFileConcatSource.fromFiles(
+                Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/fullchain.pem"),
+                Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/privkey.pem")
+        ).toByteArray()));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeJKS() throws Exception {
+        return converter.encodeKeyStoreBuffer(null, Collections.singletonMap("server", cert), password);
+    }
+
+    @Benchmark
+    public byte[] encodeJKSProvider() throws Exception {
+        return converter.encodeWithProvider(null, Collections.singletonMap("server", cert), password);
+    }
+}
@@ -0,0 +1,93 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a generated keystore the way Wowza Streaming Engine does on reload:
+ * KeyStore.load with the password, then initializing a KeyManagerFactory (which recovers the private key)
+ *
+ * The format parameter is a keystore type optionally followed by PKCS12 parameters, eg.
+ *      -p format=PKCS12:keyPbeIterationCount=10000,macIterationCount=10000
+ *
+ * The keystore is generated from a FleetGenerator lineage with the given RSA key size and number of DNS names,
+ * the properties of a lineage which change the cost of loading it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyStoreLoadBenchmark {
+
+    @Param({
+            "JKS",
+            "PKCS12",
+            "PKCS12:keyProtectionAlgorithm=PBEWithHmacSHA256AndAES_256,macAlgorithm=HmacPBESHA256,certProtectionAlgorithm=NONE"
+    })
+    public String format;
+
+    @Param({"2048", "4096"})
+    public int keySize;
+
+    @Param({"1", "100"})
+    public int sans;
+
+    KeyStoreFormat keyStoreFormat;
+    byte[] keyStore;
+    char[] password = Converter.DEFAULT_PASSWORD.toCharArray();
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] parts = format.split(":", 2);
+        keyStoreFormat = KeyStoreFormat.of(parts[0]);
+        if (parts.length > 1) {
+            for (String p : parts[1].split(",")) {
+                String[] nv = p.split("=", 2);
+                keyStoreFormat.set(nv[0], nv[1]);
+            }
+        }
+        keyStoreFormat.apply();
+
+        Path dir = Files.createTempDirectory("wlbench");
+        try {
+            Path live = new FleetGenerator()
+                    .lineages(1)
+                    .sans(sans)
+                    .intermediates(1)
+                    .keyPoolSize(1)
+                    .keySize(keySize)
+                    .generate(dir);
+            Path lineage = live.resolve(FleetGenerator.certID(0));
+
+            // nothing is read or written by the converter itself
+            Converter converter = new Converter(live.toString(), dir.toString());
+            converter.setFormat(keyStoreFormat);
+            PemCertKey cert = new PemCertKey(ByteBuffer.wrap(MultiFileConcatSource.fromFiles(
+                    lineage.resolve("fullchain.pem"),
+                    lineage.resolve("privkey.pem")
+            ).toByteArray()));
+            keyStore = converter.encodeKeyStore(cert, "server", password);
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public KeyManagerFactory load() throws Exception {
+        KeyStore ks = keyStoreFormat.newKeyStore();
+        ks.load(new ByteArrayInputStream(keyStore), password);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        return kmf;
+    }
+}
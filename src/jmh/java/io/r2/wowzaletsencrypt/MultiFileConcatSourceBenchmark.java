@@ -0,0 +1,36 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the files of a lineage into memory
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultiFileConcatSourceBenchmark {
+
+    Path[] files = {
+            Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/fullchain.pem"),
+            Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/privkey.pem")
+    };
+
+    @Benchmark
+    public InputStream build() throws Exception {
+        return MultiFileConcatSource.fromFiles(files).build();
+    }
+
+    @Benchmark
+    public ByteBuffer buffer() throws Exception {
+        return MultiFileConcatSource.fromFiles(files).buffer();
+    }
+}
@@ -0,0 +1,54 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PKCS#1 to PKCS#8 key conversion, compared to the previous fixed header implementation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PKCS1ConverterBenchmark {
+
+    byte[] pkcs1Key;
+
+    @Setup
+    public void setUp() throws Exception {
+        PemStreamParser.parseDer(
+                MultiFileConcatSource.fromFiles("src/test/resources/pem/acme-key.pem").build(),
+                (type, der) -> {
+                    pkcs1Key = new byte[der.remaining()];
+                    der.get(pkcs1Key);
+                }
+        );
+    }
+
+    @Benchmark
+    public byte[] toPKCS8() {
+        return PKCS1Converter.toPKCS8(pkcs1Key);
+    }
+
+    @Benchmark
+    public byte[] toPKCS8FixedHeader() {
+        return fixedHeader(pkcs1Key);
+    }
+
+    /**
+     * The previous implementation: patches a fixed header, assumes two byte lengths
+     */
+    static byte[] fixedHeader(byte[] innerKey) {
+        final byte[] result = new byte[innerKey.length + 26];
+        System.arraycopy(Base64.getDecoder().decode("MIIEvAIBADANBgkqhkiG9w0BAQEFAASCBKY="), 0, result, 0, 26);
+        System.arraycopy(BigInteger.valueOf(result.length - 4).toByteArray(), 0, result, 2, 2);
+        System.arraycopy(BigInteger.valueOf(innerKey.length).toByteArray(), 0, result, 24, 2);
+        System.arraycopy(innerKey, 0, result, 26, innerKey.length);
+        return result;
+    }
+}
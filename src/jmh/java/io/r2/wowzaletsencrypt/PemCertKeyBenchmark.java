@@ -0,0 +1,47 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Certificate and key decoding: PemCertKey construction for PKCS#8 and PKCS#1 keys,
+ * eager and lazy (only the certificate decoded, as when scanning for domain names)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PemCertKeyBenchmark {
+
+    /** pkcs8: certbot lineage, pkcs1: acme.sh lineage */
+    @Param({"pkcs8", "pkcs1"})
+    public String keyFormat;
+
+    byte[] pem;
+
+    @Setup
+    public void setUp() throws Exception {
+        String dir = keyFormat.equals("pkcs1") ?
+                "src/test/resources/acme.sh/not-secure-acme.r2.io/" :
+                "src/test/resources/letsencrypt/not-secure.r2.io/";
+        pem = MultiFileConcatSource.fromFiles(
+                Paths.get(dir+"fullchain.pem"),
+                Paths.get(dir+"privkey.pem")
+        ).toByteArray();
+    }
+
+    @Benchmark
+    public PemCertKey construct() throws Exception {
+        return new PemCertKey(ByteBuffer.wrap(pem));
+    }
+
+    @Benchmark
+    public PemCertKey constructLazy() throws Exception {
+        return new PemCertKey(ByteBuffer.wrap(pem), true);
+    }
+}
@@ -0,0 +1,46 @@
+package io.r2.wowzaletsencrypt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PEM parsing of a full chain and private key: line based and binary parser
+ * The line based benchmark includes joining and base64 decoding the lines, as done by PemCertKey before the
+ * binary parser, so both produce the DER content of the chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PemStreamParserBenchmark {
+
+    byte[] pem;
+
+    @Setup
+    public void setUp() throws Exception {
+        pem = MultiFileConcatSource.fromFiles(
+                Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/fullchain.pem"),
+                Paths.get("src/test/resources/letsencrypt/not-secure.r2.io/privkey.pem")
+        ).toByteArray();
+    }
+
+    @Benchmark
+    public void parseLines(Blackhole bh) throws Exception {
+        PemStreamParser.parse(new ByteArrayInputStream(pem), (type, chunk) -> bh.consume(
+                Base64.getDecoder().decode(String.join("", chunk.subList(1, chunk.size()-1)))
+        ));
+    }
+
+    @Benchmark
+    public void parseDer(Blackhole bh) throws Exception {
+        PemStreamParser.parseDer(ByteBuffer.wrap(pem), (type, der) -> bh.consume(der.remaining()));
+    }
+}
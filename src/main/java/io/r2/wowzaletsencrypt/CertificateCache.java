@@ -0,0 +1,113 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of decoded intermediate certificates, keyed by the SHA-256 digest of their DER encoding
+ *
+ * Every lineage issued by the same CA carries the same one or two intermediates, so the chains share the decoded
+ * instances (certificates are immutable) instead of decoding them for every lineage. The number of cached
+ * certificates is limited, beyond the limit certificates are decoded without caching.
+ */
+public class CertificateCache {
+
+    /** The shared cache used by PemCertKey */
+    public static final CertificateCache INTERMEDIATES = new CertificateCache(1024);
+
+    protected final int maxSize;
+    protected final ConcurrentHashMap<ByteBuffer, Certificate> cache;
+    protected final AtomicLong hits;
+    protected final AtomicLong misses;
+
+    /** CertificateFactory is not guaranteed to be thread safe */
+    protected static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        }
+        catch (CertificateException e) {
+            // X.509 is mandatory in every Java platform
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * @param maxSize maximum number of cached certificates
+     */
+    public CertificateCache(int maxSize) {
+        this.maxSize = maxSize;
+        cache = new ConcurrentHashMap<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Gets the decoded certificate from the cache, or decodes and caches it
+     *
+     * @param der the certificate in DER format
+     * @return the decoded certificate, shared with other callers for the same encoding
+     * @throws CertificateException if decoding fails
+     */
+    public Certificate get(byte[] der) throws CertificateException {
+        ByteBuffer key = ByteBuffer.wrap(Manifest.newDigest().digest(der));
+        Certificate cert = cache.get(key);
+        if (cert != null) {
+            hits.incrementAndGet();
+            return cert;
+        }
+
+        misses.incrementAndGet();
+        cert = decode(der);
+        if (cache.size() < maxSize) {
+            Certificate existing = cache.putIfAbsent(key, cert);
+            if (existing != null) cert = existing;
+        }
+        return cert;
+    }
+
+    /**
+     * Decodes a certificate without caching
+     *
+     * @param der the certificate in DER format
+     * @return the decoded X.509 certificate
+     * @throws CertificateException if decoding fails
+     */
+    public static Certificate decode(byte[] der) throws CertificateException {
+        return FACTORY.get().generateCertificate(new ByteArrayInputStream(der));
+    }
+
+    /**
+     * @return number of lookups served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups decoding the certificate
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of cached certificates
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all cached certificates and resets the counters
+     */
+    public void clear() {
+        cache.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+}
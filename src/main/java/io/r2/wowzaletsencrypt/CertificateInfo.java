@@ -0,0 +1,111 @@
+package io.r2.wowzaletsencrypt;
+
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The parts of an X.509 certificate needed for the domain map, read directly from the DER encoding
+ *
+ * Walks the certificate structure without building an X509Certificate (no signature, key or name decoding):
+ *      Certificate ::= SEQUENCE { tbsCertificate, signatureAlgorithm, signature }
+ *      TBSCertificate ::= SEQUENCE { [0] version, serialNumber, signature, issuer, validity { notBefore, notAfter },
+ *                                    subject, subjectPublicKeyInfo { algorithm, key }, [1], [2], [3] extensions }
+ * Only the dNSName entries of the SubjectAlternativeName extension, the validity and the public key algorithm
+ * are extracted.
+ */
+public class CertificateInfo {
+
+    /** subjectAltName: 2.5.29.17 */
+    protected static final byte[] OID_SAN = { 0x55, 0x1d, 0x11 };
+    /** dNSName [2] IMPLICIT IA5String */
+    protected static final int DNS_NAME = 0x82;
+
+    protected final List<String> dnsNames;
+    protected final long notBefore;
+    protected final long notAfter;
+    protected final String keyAlgorithm;
+
+    protected CertificateInfo(List<String> dnsNames, long notBefore, long notAfter, String keyAlgorithm) {
+        this.dnsNames = dnsNames;
+        this.notBefore = notBefore;
+        this.notAfter = notAfter;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * Parses a DER encoded X.509 certificate
+     *
+     * @param der the certificate
+     * @return the extracted information
+     * @throws CertificateException if the structure is invalid
+     */
+    public static CertificateInfo parse(byte[] der) throws CertificateException {
+        Der.Reader tbs = new Der.Reader(der).enter(Der.SEQUENCE).enter(Der.SEQUENCE);
+
+        if (tbs.peekTag() == 0xa0) tbs.skip();  // version
+        tbs.skip();                             // serialNumber
+        tbs.skip();                             // signature
+        tbs.skip();                             // issuer
+
+        Der.Reader validity = tbs.enter(Der.SEQUENCE);
+        long notBefore = validity.readTime();
+        long notAfter = validity.readTime();
+
+        tbs.skip();                             // subject
+
+        Der.Reader algorithm = tbs.enter(Der.SEQUENCE).enter(Der.SEQUENCE);
+        String keyAlgorithm = algorithm.peekEquals(Der.OID, Der.OID_RSA) ? "RSA" :
+                algorithm.peekEquals(Der.OID, Der.OID_EC_PUBLIC_KEY) ? "EC" : "unknown";
+
+        List<String> dnsNames = new ArrayList<>();
+        while (tbs.hasMore()) {
+            if (tbs.peekTag() != 0xa3) {
+                tbs.skip();                     // issuerUniqueID, subjectUniqueID
+                continue;
+            }
+            Der.Reader extensions = tbs.enter(0xa3).enter(Der.SEQUENCE);
+            while (extensions.hasMore()) {
+                Der.Reader ext = extensions.enter(Der.SEQUENCE);
+                if (!ext.readEquals(Der.OID, OID_SAN)) continue;
+                if (ext.peekTag() == 0x01) ext.skip(); // critical
+                Der.Reader names = ext.enter(Der.OCTET_STRING).enter(Der.SEQUENCE);
+                while (names.hasMore()) {
+                    if (names.peekTag() == DNS_NAME) dnsNames.add(names.readString(DNS_NAME));
+                    else names.skip();
+                }
+            }
+        }
+
+        return new CertificateInfo(dnsNames, notBefore, notAfter, keyAlgorithm);
+    }
+
+    /**
+     * @return the dNSName entries of the SubjectAlternativeName extension, in certificate order
+     */
+    public List<String> getDnsNames() {
+        return dnsNames;
+    }
+
+    /**
+     * @return start of the validity period
+     */
+    public Date getNotBefore() {
+        return new Date(notBefore);
+    }
+
+    /**
+     * @return end of the validity period
+     */
+    public Date getNotAfter() {
+        return new Date(notAfter);
+    }
+
+    /**
+     * @return algorithm of the public key: RSA, EC or unknown
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+}
@@ -1,114 +1,567 @@
 package io.r2.wowzaletsencrypt;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Main class of the converter
  *
  * Command line usage:
- *      [-v] <output-path> [<letsencrypt-live-path>]
+ *      [-v] [--threads N] [--full] [--streaming] [--watch | --server PORT] [--format JKS|PKCS12] [--pkcs12-NAME VALUE]... [--lineage DIR | --deploy-hook] [--generations N] [--gc-dry-run] [--report FILE] [--prometheus FILE] <output-path> [<letsencrypt-live-path>] [<password>]
+ *      [-v] --client PORT [--lineage DIR | --deploy-hook]
  *
  */
 public class Converter {
 
+    /** Default keystore password */
+    public static final String DEFAULT_PASSWORD = "secret";
+    /** Alias of the key entry, hardcoded for Wowza Streaming Engine */
+    public static final String ALIAS = "server";
+    /** Alias of the ECDSA key entry in a keystore holding an RSA and an ECDSA certificate */
+    public static final String ECDSA_ALIAS = "server-ecdsa";
+
     protected boolean verbose = false;
+    protected int threads = 1;
+    /** Worker threads kept between conversions, null to start a pool for every step */
+    protected ExecutorService executor;
+    protected boolean incremental = true;
+    protected boolean streaming = false;
+    protected boolean gcDryRun = false;
+    protected KeyStoreFormat format = KeyStoreFormat.jks();
+    protected Metrics metrics = new Metrics();
     protected Path inputPath;
     protected Path outputPath;
+    /** Generational output layout, null to write directly into the output directory */
+    protected Generations generations;
+    /** Directory of the keystores, the domain map and the manifest: the output directory, or a generation in it */
+    protected Path outputDir;
 
-    /** Certificate ID -> certificate map */
+    /** Certificate ID -> certificate map of the lineages read (in streaming mode the values are null) */
     protected HashMap<String, PemCertKey> certificates;
-    /** Domain name -> certificate ID map (use linked map to keep ordering) */
+    /** Domain name -> keystore ID map (use linked map to keep ordering) */
     protected LinkedHashMap<String, String> domains;
+    /** Keystore ID -> certificate IDs in the keystore: a single lineage, or an RSA and an ECDSA lineage paired */
+    protected LinkedHashMap<String, List<String>> keyStores;
+    /** Keystore IDs with members changed since the previous run */
+    protected Set<String> regrouped;
+    /** Manifest of the previous run, used to skip unchanged lineages */
+    protected Manifest previousManifest;
+    /** Manifest of this run, written after the domain map */
+    protected Manifest manifest;
+    /** Certificate IDs to check for changes, null to check all */
+    protected Set<String> dirty;
+    /** Names of the output files actually changed by writeJKS */
+    protected List<String> published;
+    /** Names of the stale keystores deleted by writeJKS */
+    protected List<String> deleted;
 
     public Converter(String inputPath, String outputPath) {
         this.inputPath = Paths.get(inputPath);
         this.outputPath = Paths.get(outputPath);
+        outputDir = this.outputPath;
 
         certificates = new HashMap<>();
         domains = new LinkedHashMap<>();
+        keyStores = new LinkedHashMap<>();
+        regrouped = new HashSet<>();
+        previousManifest = new Manifest();
+        manifest = new Manifest();
+        published = new ArrayList<>();
+        deleted = new ArrayList<>();
     }
 
     public void setVerbose(boolean v) {
         verbose = v;
     }
 
+    /**
+     * Sets the number of threads used for reading certificates
+     * @param threads number of worker threads, 1 reads sequentially on the calling thread
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the worker threads of a long running process (server mode), used when more than one thread is set
+     * The same threads run every conversion, so their certificate and key factories stay warm.
+     * @param executor the worker threads (not shut down by the converter), null to start a pool for every step
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the output keystore format (default JKS)
+     * @param format the keystore format
+     */
+    public void setFormat(KeyStoreFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the generational output layout: the conversion is written to a new generation directory, which is
+     * published only if something changed (default null: the output directory is updated in place)
+     * @param generations the generations in the output directory
+     */
+    public void setGenerations(Generations generations) {
+        this.generations = generations;
+    }
+
+    /**
+     * Sets the metrics to record the phases of the conversion to (by default a new instance for each converter)
+     * @param metrics the metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics of the conversion
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets incremental mode (default on): lineages unchanged since the previous run (as recorded
+     * in the manifest) are not parsed and their keystores are not rewritten
+     * @param incremental false to convert everything
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets streaming mode (default off): certificates are parsed and checked when reading, but only their
+     * domains and fingerprints are kept, and they are read again one by one when writing the keystores.
+     * Memory use does not grow with the number of lineages, at the cost of reading the changed ones twice.
+     * The keys and the certificate chains are decoded only once, when writing: a corrupt key or chain fails
+     * writing instead of reading. If a lineage is invalid or changes between reading and writing, writing fails
+     * and nothing is published.
+     * @param streaming true to enable streaming mode
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets dry run mode of the stale keystore collection (default off): keystores written by earlier runs and no
+     * longer in the domain map are only reported, not deleted
+     * @param gcDryRun true to keep the stale keystores
+     */
+    public void setGcDryRun(boolean gcDryRun) {
+        this.gcDryRun = gcDryRun;
+    }
+
     /**
      * Reads all certificates to memory, parses and checks them
+     * If more than one thread is set, lineages are read in parallel, but the results are merged
+     * in directory order, so the domain map is the same as in the sequential case
+     * Lineages covering the same domains with different key algorithms (eg. example.com and example.com-ecdsa)
+     * are paired to a single keystore, see pairLineages
      * @return true if reading was successful
      */
     public boolean readCertificates() {
-        String status = "initialization";
+        return readCertificates(null);
+    }
 
+    /**
+     * Reads certificates, checking only the specified lineages for changes
+     * Lineages outside the dirty set which are recorded in the previous manifest are taken from the
+     * manifest without looking at their files. New lineages are always read.
+     * @param dirty certificate IDs to check, null to check all
+     * @return true if reading was successful
+     */
+    public boolean readCertificates(Set<String> dirty) {
+        this.dirty = dirty;
+
+        List<Path> dirs;
         try {
-            // iterate through directory of certificates
-            try (DirectoryStream<Path> dirList = Files.newDirectoryStream(inputPath)) {
-                for (Path dir : dirList) {
-                    if (!dir.toFile().isDirectory()) continue;
-                    String certID = dir.getFileName().toString();
-                    status = certID;
-                    if (verbose) System.out.println("Reading "+certID);
-
-                    // read certificate
-                    InputStream in = MultiFileConcatSource.fromFiles(
-                            dir.resolve("fullchain.pem"),
-                            dir.resolve("privkey.pem")
-                    ).build();
-                    PemCertKey pem = new PemCertKey(in);
-
-                    certificates.put(certID, pem);
-
-                    // parse list of domains from subject alternative names extension (DNSName)
-                    Certificate cert = pem.getCertificate();
-                    if (!(cert instanceof X509Certificate)) {
-                        System.err.println(certID+": can't parse as X.509 certificate");
-                        return false;
-                    }
-                    X509Certificate x509 = (X509Certificate) cert;
-
-                    Stream<String> dnsNames = x509.getSubjectAlternativeNames().stream().filter(ext ->
-                        ext.size() == 2 &&
-                        ext.get(0) instanceof Integer && ((Integer) ext.get(0)).intValue() == 2 &&
-                        ext.get(1) instanceof String
-                    ).map(ext -> (String)ext.get(1));
-
-                    ArrayList<String> domainList = new ArrayList<String>();
-                    dnsNames.forEach(value-> {
-                        if (verbose) System.out.println("-> "+value);
-                        domainList.add(value);
-                    });
-
-                    // check if parsed successfully
-                    if (domainList.size() == 0) {
-                        System.err.println(certID+": no DNSName subject name extensions found");
-                        return false;
-                    }
+            if (generations != null) {
+                // read from the published generation, or from the flat layout when switching to generations
+                Path current = generations.current();
+                outputDir = current != null ? current : outputPath;
+            }
+            previousManifest = Manifest.load(outputDir);
+            dirs = listLineages();
+        }
+        catch (IOException e) {
+            System.err.println("Read error in initialization:"+e.getMessage());
+            return false;
+        }
+
+        try {
+            // merge in directory order, only if every lineage was read successfully
+            boolean allowSkip = incremental || dirty != null;
+            forEachLineage(dirs, dir -> {
+                Lineage lineage = readLineage(dir, allowSkip);
+                // streaming: the certificate is checked, but not kept (the key and the chain are decoded when writing)
+                if (streaming) return lineage.withoutCertificate();
+                // everything written must be valid: decode the key and the chain before anything is written
+                if (lineage.pem != null) validate(lineage.certID, lineage.pem);
+                return lineage;
+            }).forEach(this::addLineage);
+        }
+        catch (LineageException e) {
+            System.err.println("Read error in "+e.certID+":"+e.getCause().getMessage());
+            return false;
+        }
+
+        pairLineages();
+
+        // all done
+        return true;
+    }
+
+    /**
+     * Reads certificates after a single lineage was renewed (eg. in a certbot deploy hook)
+     * Only the renewed lineage is read and parsed, the other lineages recorded in the manifest of the previous run are
+     * taken from it (domains and keystore) without looking at their files, so the keystore of the renewed lineage is
+     * written and the domain map is patched, regardless of the number of other lineages. Without a manifest (first run)
+     * everything is read.
+     *
+     * @param lineageDir the lineage directory, must be in the input directory
+     * @return true if reading was successful
+     */
+    public boolean readRenewedLineage(Path lineageDir) {
+        String certID = lineageID(inputPath, lineageDir);
+        return certID != null && readCertificates(Collections.singleton(certID));
+    }
+
+    /**
+     * @param inputPath the input directory
+     * @param lineageDir a lineage directory
+     * @return the certificate ID of the lineage, or null if it is not a directory in the input directory
+     */
+    protected static String lineageID(Path inputPath, Path lineageDir) {
+        Path dir = lineageDir.toAbsolutePath().normalize();
+        if (!inputPath.toAbsolutePath().normalize().equals(dir.getParent())) {
+            System.err.println("Read error in initialization:lineage "+lineageDir+" is not in the input directory "+inputPath);
+            return null;
+        }
+        if (!Files.isDirectory(dir)) {
+            System.err.println("Read error in initialization:lineage "+lineageDir+" does not exist");
+            return null;
+        }
+        return dir.getFileName().toString();
+    }
+
+    /**
+     * Runs a task for every lineage, on a fixed size thread pool (or the executor set) if more than one thread is set
+     * Results are returned in the order of the input, so the outcome is the same as in the sequential case
+     *
+     * @param items the lineages to process (lineage directories or certificate IDs)
+     * @param task the task to run for each lineage
+     * @return results in input order
+     * @throws LineageException for the first failing lineage (in input order)
+     */
+    protected <I, T> List<T> forEachLineage(List<I> items, LineageTask<I, T> task) throws LineageException {
+        List<T> results = new ArrayList<>(items.size());
 
-                    // add to domain map
-                    domainList.forEach(d -> domains.put(d, certID));
+        if (threads <= 1 || items.size() <= 1) {
+            for (I item : items) {
+                try {
+                    results.add(task.run(item));
+                }
+                catch (Exception e) {
+                    throw new LineageException(item, e);
                 }
             }
+            return results;
+        }
 
-            // all done
-            return true;
+        ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(Math.min(threads, items.size()));
+        List<Future<T>> futures = new ArrayList<>(items.size());
+        try {
+            for (I item : items) {
+                futures.add(pool.submit(() -> task.run(item)));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                }
+                catch (ExecutionException e) {
+                    throw new LineageException(items.get(i), e.getCause() != null ? e.getCause() : e);
+                }
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LineageException("(interrupted)", e);
+        }
+        finally {
+            // stop the remaining tasks after a failure, a shared executor is kept
+            for (Future<T> f : futures) f.cancel(true);
+            if (pool != executor) pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the lineage directories (subdirectories) of the input path
+     * @return list of directories in directory order
+     * @throws IOException on directory read error
+     */
+    protected List<Path> listLineages() throws IOException {
+        Metrics.Span span = metrics.start(Metrics.Phase.scan);
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> dirList = Files.newDirectoryStream(inputPath)) {
+            for (Path dir : dirList) {
+                if (dir.toFile().isDirectory()) dirs.add(dir);
+            }
         }
-        catch (IOException | CertificateException | NoSuchAlgorithmException e) {
-            System.err.println("Read error in "+status+":"+e.getMessage());
+        span.end();
+        return dirs;
+    }
+
+    /**
+     * Reads and parses a single lineage directory
+     * This method does not modify the converter state, so it is safe to call from multiple threads
+     * @param dir the lineage directory containing fullchain.pem and privkey.pem
+     * @param allowSkip if true, lineages recorded as unchanged in the previous manifest are not parsed
+     * @return the parsed lineage (without certificate if skipped)
+     */
+    protected Lineage readLineage(Path dir, boolean allowSkip) throws IOException, CertificateException, NoSuchAlgorithmException {
+        String certID = dir.getFileName().toString();
+        Path chainFile = dir.resolve("fullchain.pem");
+        Path keyFile = dir.resolve("privkey.pem");
+
+        Manifest.Entry previous = allowSkip ? previousManifest.get(certID) : null;
+
+        // outside of the dirty set: trust the previous run without looking at the files
+        if (previous != null && dirty != null && !dirty.contains(certID)) {
+            return new Lineage(certID, null, previous.domains, previous);
+        }
+
+        // fingerprint of input files
+        Manifest.Entry entry = new Manifest.Entry(certID);
+        entry.chainSize = Files.size(chainFile);
+        entry.chainMtime = Files.getLastModifiedTime(chainFile).toMillis();
+        entry.keySize = Files.size(keyFile);
+        entry.keyMtime = Files.getLastModifiedTime(keyFile).toMillis();
+
+        boolean outputIntact = previous != null && isOutputIntact(previous);
+
+        // fast path: same size and modification time, not even reading the input
+        if (outputIntact && previous.sameFileStats(entry)) {
+            if (verbose) System.out.println("Unchanged "+certID);
+            return new Lineage(certID, null, previous.domains, previous);
+        }
+
+        if (verbose) System.out.println("Reading "+certID);
+
+        // read certificate
+        Metrics.Span span = metrics.start(Metrics.Phase.read);
+        MultiFileConcatSource source = MultiFileConcatSource.fromFiles(chainFile, keyFile);
+        entry.inputDigest = Manifest.hex(source.digest(Manifest.newDigest()));
+        span.end(certID, source.size(), 0);
+        metrics.add(Metrics.Counter.bytes_read, source.size());
+
+        // touched, but same content
+        if (outputIntact && entry.inputDigest.equals(previous.inputDigest)) {
+            if (verbose) System.out.println("Unchanged "+certID);
+            entry.jksDigest = previous.jksDigest;
+            entry.keyAlgorithm = previous.keyAlgorithm;
+            entry.notAfter = previous.notAfter;
+            entry.keyStore = previous.keyStore;
+            entry.domains = previous.domains;
+            return new Lineage(certID, null, previous.domains, entry);
+        }
+
+        // lazy: the key and the certificates are decoded only if the lineage is kept for writing
+        span = metrics.start(Metrics.Phase.parse);
+        PemCertKey pem = new PemCertKey(source.buffer(), true);
+
+        // parse list of domains from subject alternative names extension (DNSName), directly from the DER encoding,
+        // the certificate is decoded by the JDK only if the keystore is written
+        byte[] leaf = pem.getCertificateEncoded();
+        if (leaf == null) {
+            throw new CertificateException("can't parse as X.509 certificate");
+        }
+        CertificateInfo info = CertificateInfo.parse(leaf);
+        List<String> domainList = info.getDnsNames();
+        span.end(certID, source.size(), domainList.size());
+
+        // check if parsed successfully
+        if (domainList.size() == 0) {
+            throw new CertificateException("no DNSName subject name extensions found");
+        }
+
+        entry.keyAlgorithm = info.getKeyAlgorithm();
+        entry.notAfter = info.getNotAfter().getTime();
+        if (!pem.hasKey()) {
+            throw new CertificateException("no private key found");
+        }
+        if (!entry.keyAlgorithm.equals(pem.getPrivateKeyAlgorithm())) {
+            throw new CertificateException("private key algorithm does not match the certificate");
+        }
+        if (verbose) System.out.println(certID+" valid until "+info.getNotAfter());
+        entry.domains = domainList;
+        return new Lineage(certID, pem, domainList, entry);
+    }
+
+    /**
+     * Validates the private key and the certificate chain of a lineage by decoding them (the decoded ones are kept)
+     * @param certID the certificate ID
+     * @param pem the certificate chain and key
+     * @throws CertificateException if the key or a certificate of the chain is invalid
+     */
+    protected void validate(String certID, PemCertKey pem) throws CertificateException {
+        try {
+            privateKey(certID, pem);
+            certificateChain(certID, pem);
+        }
+        catch (UnrecoverableKeyException | IllegalStateException e) {
+            throw new CertificateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks if the keystore recorded in a manifest entry is still the one in the output directory
+     * @param entry the manifest entry from the previous run
+     * @return true if the keystore exists and its digest matches
+     */
+    protected boolean isOutputIntact(Manifest.Entry entry) {
+        Path jks = outputDir.resolve(keyStoreName(entry.keyStore));
+        try {
+            return Files.isRegularFile(jks) && Manifest.digest(Files.readAllBytes(jks)).equals(entry.jksDigest);
+        }
+        catch (IOException e) {
             return false;
         }
     }
 
     /**
-     * Writes certificates in JKS format
+     * Adds a parsed lineage to the certificate and domain maps
+     * @param lineage the lineage read by readLineage
+     */
+    protected void addLineage(Lineage lineage) {
+        if (lineage.parsed) certificates.put(lineage.certID, lineage.pem);
+        metrics.add(Metrics.Counter.lineages, 1);
+        metrics.add(lineage.parsed ? Metrics.Counter.lineages_parsed : Metrics.Counter.lineages_skipped, 1);
+        manifest.put(lineage.entry);
+        lineage.domains.forEach(d -> {
+            if (verbose) System.out.println(lineage.certID+" -> "+d);
+            domains.put(d, lineage.certID);
+        });
+    }
+
+    /**
+     * Groups the lineages read to keystores
+     * Two lineages are paired to one keystore if they cover the same set of domains and have different key algorithms
+     * (eg. example.com with RSA and example.com-ecdsa with ECDSA key), so clients supporting ECDSA get the cheaper
+     * handshake and the others fall back to RSA. The keystore is named after the RSA lineage, and the domains are
+     * mapped to it. Every other lineage has its own keystore. Of several candidates (eg. a stale example.com and
+     * its renewed duplicate example.com-0001) the newest certificates are paired.
+     */
+    protected void pairLineages() {
+        keyStores.clear();
+        regrouped.clear();
+
+        // pair with the newest unpaired lineage of the same domains and another key algorithm
+        // (stable sort: lineages expiring at the same time are paired in directory order)
+        List<Manifest.Entry> newestFirst = new ArrayList<>(manifest.entries());
+        newestFirst.sort(Comparator.comparingLong((Manifest.Entry e) -> e.notAfter).reversed());
+        HashMap<Set<String>, List<String>> unpaired = new HashMap<>();
+        HashMap<String, String> partners = new HashMap<>();
+        for (Manifest.Entry entry : newestFirst) {
+            Set<String> names = new HashSet<>(entry.domains);
+            List<String> candidates = unpaired.computeIfAbsent(names, k -> new ArrayList<>());
+            String partner = null;
+            for (String candidate : candidates) {
+                if (!manifest.get(candidate).keyAlgorithm.equals(entry.keyAlgorithm)) {
+                    partner = candidate;
+                    break;
+                }
+            }
+            if (partner == null) {
+                candidates.add(entry.certID);
+            }
+            else {
+                candidates.remove(partner);
+                partners.put(partner, entry.certID);
+                partners.put(entry.certID, partner);
+            }
+        }
+
+        // keystores in directory order
+        for (Manifest.Entry entry : manifest.entries()) {
+            String partner = partners.get(entry.certID);
+            if (partner != null && keyStores.containsKey(partner)) {
+                keyStores.get(partner).add(entry.certID);
+            }
+            else {
+                keyStores.put(entry.certID, new ArrayList<>(Collections.singletonList(entry.certID)));
+            }
+        }
+
+        // name the keystore of a pair after the RSA lineage
+        LinkedHashMap<String, List<String>> named = new LinkedHashMap<>();
+        keyStores.forEach((id, members) -> {
+            if (members.size() > 1 && !"RSA".equals(manifest.get(id).keyAlgorithm)) {
+                Collections.reverse(members);
+                id = members.get(0);
+            }
+            named.put(id, members);
+        });
+        keyStores = named;
+
+        // keystores with other members than in the previous run must be written again (before updating the entries)
+        HashMap<String, Set<String>> previousMembers = new HashMap<>();
+        for (Manifest.Entry entry : previousManifest.entries()) {
+            previousMembers.computeIfAbsent(entry.keyStore, k -> new HashSet<>()).add(entry.certID);
+        }
+        keyStores.forEach((id, members) -> {
+            if (!new HashSet<>(members).equals(previousMembers.get(id))) regrouped.add(id);
+        });
+
+        keyStores.forEach((id, members) -> {
+            for (String certID : members) {
+                Manifest.Entry entry = manifest.get(certID);
+                entry.keyStore = id;
+                if (members.size() > 1) {
+                    if (verbose && !certID.equals(id)) System.out.println(certID+" paired with "+id);
+                    entry.domains.forEach(d -> domains.put(d, id));
+                }
+            }
+        });
+    }
+
+    /**
+     * @param certID a certificate ID in a keystore
+     * @param members all certificate IDs in the keystore
+     * @return the alias of the key entry: ALIAS, or ECDSA_ALIAS for the ECDSA lineage of a pair
+     */
+    protected String alias(String certID, List<String> members) {
+        return members.size() > 1 && "EC".equals(manifest.get(certID).keyAlgorithm) ? ECDSA_ALIAS : ALIAS;
+    }
+
+    /**
+     * Writes certificates in the output keystore format (JKS by default) with the default password
+     * @return true if writing was successful
+     */
+    public boolean writeJKS() {
+        return writeJKS(DEFAULT_PASSWORD);
+    }
+
+    /**
+     * Writes certificates in the output keystore format (JKS by default)
      * @return true if writing was successful
      */
     public boolean writeJKS(String password) {
@@ -116,62 +569,440 @@ public class Converter {
         // need change default password
         //String password = "secret";
         char[] passwordChr = password.toCharArray();
-        // hardcoded alias for Wowza Streaming Engine
-        String alias = "server";
         // name of output map file
         String mapName = "jksmap.txt";
 
         String status = "initialization";
+        List<String> written = new ArrayList<>();
+        int publishedKeyStores = 0;
+        Path previousDir = outputDir;
         try {
-            // write all certificates to JKS
-            for (Map.Entry<String, PemCertKey> e : certificates.entrySet()) {
-                String certID = e.getKey();
-                PemCertKey cert = e.getValue();
-                String jksName = certID+".jks";
-                status = certID;
-
-                if (verbose) System.out.println("Writing "+jksName);
+            if (generations != null) {
+                status = "generation";
+                outputDir = generations.create(previousDir);
+            }
 
-                // create empty keystore in memory
-                KeyStore ks = KeyStore.getInstance("JKS");
-                ks.load(null, passwordChr);
+            // keystores to write: with a changed lineage, with other lineages than before, or all of them
+            // if the skipped keystores were written with another password or format
+            boolean sameSettings = previousManifest.matchesSettings(settings(password));
+            List<Path> reload = new ArrayList<>();
+            keyStores.forEach((id, members) -> {
+                if (!sameSettings || regrouped.contains(id) || members.stream().anyMatch(certificates::containsKey)) {
+                    written.add(id);
+                    for (String certID : members) {
+                        if (!certificates.containsKey(certID)) reload.add(inputPath.resolve(certID));
+                    }
+                }
+            });
+            // skipped lineages in these keystores must be read again (in streaming mode when writing)
+            if (streaming) reload.clear();
+            for (Lineage lineage : forEachLineage(reload, dir -> readLineage(dir, false))) {
+                lineage.entry.keyStore = manifest.get(lineage.certID).keyStore;
+                certificates.put(lineage.certID, lineage.pem);
+                manifest.put(lineage.entry);
+            }
 
-                // add certificate/key
-                ks.setKeyEntry(alias, cert.getPrivateKey(), passwordChr, cert.getCertificateChain());
+            // encode and write all changed keystores to temporary files
+            Map<String, String> previousProperties = format.apply();
+            List<KeyStoreOutput> outputs;
+            try {
+                outputs = forEachLineage(written, id ->
+                        writeKeyStore(id, keyStoreEntries(id), passwordChr, sameSettings)
+                );
+            }
+            finally {
+                format.restore(previousProperties);
+            }
 
-                // write to file
-                try(FileOutputStream f = new FileOutputStream(outputPath.resolve(jksName).toFile())) {
-                    ks.store(f, passwordChr);
+            // every keystore is complete, move the changed ones in place
+            for (int i = 0; i < written.size(); i++) {
+                String id = written.get(i);
+                KeyStoreOutput out = outputs.get(i);
+                status = id;
+                if (out.changed) {
+                    Metrics.Span span = metrics.start(Metrics.Phase.publish);
+                    Files.move(outputDir.resolve(keyStoreName(id)+".tmp"), outputDir.resolve(keyStoreName(id)),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    span.end();
+                    published.add(keyStoreName(id));
+                    publishedKeyStores++;
+                }
+                for (String certID : keyStores.get(id)) {
+                    manifest.get(certID).jksDigest = out.digest;
                 }
             }
 
-            if (verbose) System.out.println("Writing "+mapName);
+            // write domain map to jksmap.txt, if changed
+            status = mapName;
+            if (publish(outputDir.resolve(mapName), domainMap(outputDir, password))) published.add(mapName);
 
-            // write to .tmp file and rename atomically
-            Path tmpMap = outputPath.resolve(mapName+".tmp");
-            Path realMap = outputPath.resolve(mapName);
+            // the map no longer refers to the stale keystores
+            status = "stale keystores";
+            Set<String> owned = collectStaleKeyStores();
 
-            // write domain map to jksmap.txt
-            try(PrintWriter f = new PrintWriter(tmpMap.toFile())) {
-                domains.forEach((domain, certID)->
-                    f.printf("%s={\"keyStorePath\":\"%s\", \"keyStorePassword\":\"%s\", \"keyStoreType\":\"JKS\"}\n",
-                                jsonEscape(domain),
-                                jsonEscape(outputPath.resolve(certID+".jks").toAbsolutePath().toString()),
-                                jsonEscape(password)
-                            )
-                );
+            // record what was written for the next incremental run
+            status = Manifest.FILE_NAME;
+            manifest.setSettings(settings(password));
+            manifest.setOwned(owned);
+            publish(outputDir.resolve(Manifest.FILE_NAME), manifest.render());
+
+            if (generations != null) {
+                // publish the new generation, unless it is the same as the previous one (except for the paths)
+                status = "generation "+outputDir.getFileName();
+                Path previousMap = previousDir.resolve(mapName);
+                if (publishedKeyStores > 0 || !deleted.isEmpty() || generations.current() == null || !Files.isRegularFile(previousMap) ||
+                        !Arrays.equals(Files.readAllBytes(previousMap), domainMap(previousDir, password))) {
+                    generations.publish(outputDir);
+                    if (verbose) System.out.println("Published generation "+outputDir.getFileName());
+                }
+                else {
+                    // keep the new input fingerprints, or the changed lineages are parsed again in every run
+                    // (the manifest is not used by Wowza, it is replaced in the published generation)
+                    publish(previousDir.resolve(Manifest.FILE_NAME), manifest.render());
+                    generations.discard(outputDir);
+                    outputDir = previousDir;
+                    published.clear();
+                }
             }
 
-            // rename
-            Files.move(tmpMap, realMap, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (verbose) {
+                published.forEach(fn -> System.out.println("Published "+fn));
+                System.out.println("Published "+published.size()+" file(s), "+
+                        (keyStores.size()-publishedKeyStores)+" keystore(s) unchanged");
+                System.out.println("Intermediate certificate cache: "+CertificateCache.INTERMEDIATES.getHits()+" hit(s), "+
+                        CertificateCache.INTERMEDIATES.getMisses()+" miss(es)");
+            }
+        }
+        catch (LineageException e) {
+            System.err.println("Write error in "+e.certID+":"+e.getCause().getMessage());
+            deleteTemporary(written, previousDir);
+            return false;
         }
-        catch (IOException | KeyStoreException | CertificateException | NoSuchAlgorithmException | UnrecoverableKeyException e) {
+        catch (IOException e) {
             System.err.println("Write error in "+status+":"+e.getMessage());
+            deleteTemporary(written, previousDir);
             return false;
         }
         return true;
     }
 
+    /**
+     * Deletes the keystores written by earlier runs which are no longer in the domain map (of removed lineages,
+     * or written in another format). Only the files recorded as owned in the previous manifest (or as the keystore
+     * of a lineage in it) are deleted, never other files in the output directory.
+     * In dry run mode the stale keystores are only reported.
+     *
+     * @return names of the keystores owned after the collection: the current ones and the stale ones not deleted
+     */
+    protected Set<String> collectStaleKeyStores() {
+        Set<String> current = new TreeSet<>();
+        for (String id : keyStores.keySet()) current.add(keyStoreName(id));
+
+        Set<String> stale = new TreeSet<>(previousManifest.getOwned());
+        for (Manifest.Entry e : previousManifest.entries()) {
+            if (e.keyStore != null) stale.add(keyStoreName(e.keyStore));
+        }
+        stale.removeAll(current);
+
+        Set<String> owned = new TreeSet<>(current);
+        for (String name : stale) {
+            Path file = outputDir.resolve(name);
+            if (!file.getParent().equals(outputDir) || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) continue;
+            if (gcDryRun) {
+                System.out.println("Stale keystore (dry run, not deleted): "+name);
+                owned.add(name);
+                continue;
+            }
+            try {
+                Files.delete(file);
+                deleted.add(name);
+                metrics.add(Metrics.Counter.keystores_deleted, 1);
+                if (verbose) System.out.println("Deleted stale keystore "+name);
+            }
+            catch (IOException e) {
+                System.err.println("Error deleting stale keystore "+name+": "+e.getMessage());
+                owned.add(name);
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Renders the domain map
+     * @param dir the directory of the keystores
+     * @param password the keystore password
+     * @return contents of the domain map
+     */
+    protected byte[] domainMap(Path dir, String password) {
+        StringBuilder map = new StringBuilder();
+        domains.forEach((domain, id)->
+            map.append(String.format("%s={\"keyStorePath\":\"%s\", \"keyStorePassword\":\"%s\", \"keyStoreType\":\"%s\"}\n",
+                        jsonEscape(domain),
+                        jsonEscape(dir.resolve(keyStoreName(id)).toAbsolutePath().toString()),
+                        jsonEscape(password),
+                        format.getType()
+                    ))
+        );
+        return map.toString().getBytes();
+    }
+
+    /**
+     * Gets the key entries of a keystore, in streaming mode reads the lineages again
+     * This method does not modify the converter state, so it is safe to call from multiple threads
+     *
+     * @param id the keystore ID
+     * @return the key entries of the keystore: alias -> certificate chain and key
+     * @throws IOException if a lineage changed since it was read (streaming mode)
+     */
+    protected LinkedHashMap<String, PemCertKey> keyStoreEntries(String id)
+            throws IOException, CertificateException, NoSuchAlgorithmException {
+        LinkedHashMap<String, PemCertKey> entries = new LinkedHashMap<>();
+        List<String> members = keyStores.get(id);
+        for (String certID : members) {
+            PemCertKey pem = certificates.get(certID);
+            if (pem == null) {
+                // streaming: second pass, must be the same input as checked in the first one
+                Lineage lineage = readLineage(inputPath.resolve(certID), false);
+                if (!lineage.entry.inputDigest.equals(manifest.get(certID).inputDigest)) {
+                    throw new IOException("input changed since it was read");
+                }
+                pem = lineage.pem;
+            }
+            entries.put(alias(certID, members), pem);
+        }
+        return entries;
+    }
+
+    /**
+     * Encodes a keystore and writes it to a temporary file (keystore name with .tmp) in the output directory,
+     * unless the keystore already in the output directory holds the same keys and certificate chains
+     * (the encoding is salted, so it differs on every run even for the same contents)
+     * This method does not modify the converter state, so it is safe to call from multiple threads
+     *
+     * @param id the keystore ID
+     * @param entries the key entries: alias -> certificate chain and key
+     * @param password the keystore and key password
+     * @param keepExisting false if the existing keystore must be replaced (eg. with other protection parameters)
+     * @return digest of the keystore and whether it was changed
+     */
+    protected KeyStoreOutput writeKeyStore(String id, Map<String, PemCertKey> entries, char[] password, boolean keepExisting)
+            throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        String name = keyStoreName(id);
+        Path existing = outputDir.resolve(name);
+        if (keepExisting && Files.isRegularFile(existing)) {
+            byte[] current = Files.readAllBytes(existing);
+            if (containsSameEntries(id, current, entries, password)) {
+                if (verbose) System.out.println("Unchanged "+name);
+                metrics.add(Metrics.Counter.keystores_unchanged, 1);
+                return new KeyStoreOutput(Manifest.digest(current), false);
+            }
+        }
+
+        if (verbose) System.out.println("Writing "+name);
+
+        Metrics.Span span = metrics.start(Metrics.Phase.encode);
+        ByteBuffer jks = encodeKeyStoreBuffer(id, entries, password);
+        int size = jks.remaining();
+        span.end(id, size, 0);
+        String digest = Manifest.digest(jks.duplicate());
+
+        span = metrics.start(Metrics.Phase.write);
+        metrics.add(Metrics.Counter.bytes_written, size);
+        try (FileChannel out = FileChannel.open(outputDir.resolve(name+".tmp"),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (jks.hasRemaining()) out.write(jks);
+        }
+        span.end(id, size, 0);
+        metrics.add(Metrics.Counter.keystores_written, 1);
+        return new KeyStoreOutput(digest, true);
+    }
+
+    /**
+     * Checks if an encoded keystore holds exactly the same key entries (same keys and certificate chains)
+     *
+     * @param id the keystore ID
+     * @param jks the encoded keystore
+     * @param entries the key entries: alias -> certificate chain and key
+     * @param password the keystore and key password
+     * @return true if the contents are the same, false if different or can't be loaded with the password
+     */
+    protected boolean containsSameEntries(String id, byte[] jks, Map<String, PemCertKey> entries, char[] password) throws UnrecoverableKeyException {
+        try {
+            KeyStore ks = format.newKeyStore();
+            ks.load(new ByteArrayInputStream(jks), password);
+            if (ks.size() != entries.size()) return false;
+
+            for (Map.Entry<String, PemCertKey> e : entries.entrySet()) {
+                String alias = e.getKey();
+                if (!ks.isKeyEntry(alias)) return false;
+                Key key = ks.getKey(alias, password);
+                if (key == null ||
+                        !Arrays.equals(key.getEncoded(), privateKey(id, e.getValue()).getEncoded()) ||
+                        !Arrays.equals(ks.getCertificateChain(alias), certificateChain(id, e.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch (IOException | GeneralSecurityException e) {
+            // not loadable with this password: different
+            return false;
+        }
+    }
+
+    /**
+     * Publishes a file atomically (write to .tmp file, then rename), if its contents changed
+     *
+     * @param target the file to write
+     * @param contents the new contents
+     * @return true if the file was written, false if it already had the same contents
+     * @throws IOException on write error
+     */
+    protected boolean publish(Path target, byte[] contents) throws IOException {
+        if (Files.isRegularFile(target) && Files.size(target) == contents.length &&
+                Arrays.equals(Files.readAllBytes(target), contents)) {
+            return false;
+        }
+
+        if (verbose) System.out.println("Writing "+target.getFileName());
+        Metrics.Span span = metrics.start(Metrics.Phase.publish);
+        Path tmp = target.resolveSibling(target.getFileName()+".tmp");
+        Files.write(tmp, contents);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        span.end();
+        return true;
+    }
+
+    /**
+     * Removes the temporary keystore files (or the new generation) left by a failed write
+     * @param ids the keystore IDs written
+     * @param previousDir the output directory before writing
+     */
+    protected void deleteTemporary(List<String> ids, Path previousDir) {
+        if (!outputDir.equals(previousDir)) {
+            generations.discard(outputDir);
+            outputDir = previousDir;
+            return;
+        }
+        for (String id : ids) {
+            try {
+                Files.deleteIfExists(outputDir.resolve(keyStoreName(id)+".tmp"));
+            }
+            catch (IOException e) {
+                // best effort
+            }
+        }
+    }
+
+    /**
+     * @param id the keystore ID (certificate ID of the lineage, or of the RSA lineage in a pair)
+     * @return file name of the keystore in the output directory
+     */
+    protected String keyStoreName(String id) {
+        return id+"."+format.getExtension();
+    }
+
+    /**
+     * @param password the keystore password
+     * @return the output settings recorded in the manifest: keystores must be written again if changed
+     */
+    protected String settings(String password) {
+        return password+"\n"+format;
+    }
+
+    /**
+     * Encodes a certificate chain and key as a keystore in the output format
+     *
+     * @param cert the certificate chain and key
+     * @param alias the alias of the key entry
+     * @param password the keystore and key password
+     * @return the encoded keystore
+     */
+    protected byte[] encodeKeyStore(PemCertKey cert, String alias, char[] password)
+            throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        ByteBuffer jks = encodeKeyStoreBuffer(null, Collections.singletonMap(alias, cert), password);
+        byte[] result = new byte[jks.remaining()];
+        jks.get(result);
+        return result;
+    }
+
+    /**
+     * Encodes certificate chains and keys as a keystore in the output format
+     * JKS keystores with a single entry are written directly (see JksWriter), without the KeyStore provider, into a
+     * buffer reused by the calling thread: the result is valid until the next call in this thread. The key and the
+     * certificates are decoded (validated) in both cases, but they are already decoded when the lineage was read.
+     *
+     * @param id the keystore ID (for the decoding events), null if not written to a file
+     * @param entries the key entries: alias -> certificate chain and key
+     * @param password the keystore and key password
+     * @return the encoded keystore between position and limit
+     */
+    protected ByteBuffer encodeKeyStoreBuffer(String id, Map<String, PemCertKey> entries, char[] password)
+            throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        if (entries.size() == 1 && format.getType().equals("JKS")) {
+            Map.Entry<String, PemCertKey> e = entries.entrySet().iterator().next();
+            PemCertKey pem = e.getValue();
+            if (pem.hasKey()) {
+                Key key = privateKey(id, pem);
+                certificateChain(id, pem);
+                return JksWriter.encode(e.getKey(), key.getEncoded(), pem.getCertificateChainEncoded(), password);
+            }
+        }
+        return ByteBuffer.wrap(encodeWithProvider(id, entries, password));
+    }
+
+    /**
+     * Encodes certificate chains and keys as a keystore in the output format, with the KeyStore provider
+     *
+     * @param id the keystore ID (for the decoding events), null if not written to a file
+     * @param entries the key entries: alias -> certificate chain and key
+     * @param password the keystore and key password
+     * @return the encoded keystore
+     */
+    protected byte[] encodeWithProvider(String id, Map<String, PemCertKey> entries, char[] password)
+            throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        // create empty keystore in memory
+        KeyStore ks = format.newKeyStore();
+        ks.load(null, password);
+
+        // add certificates/keys
+        for (Map.Entry<String, PemCertKey> e : entries.entrySet()) {
+            ks.setKeyEntry(e.getKey(), privateKey(id, e.getValue()), password, certificateChain(id, e.getValue()));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ks.store(out, password);
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the private key of an entry, recording the decoding time if it was not decoded yet
+     * @param id the keystore ID
+     * @param pem the certificate chain and key
+     * @return the private key
+     */
+    protected Key privateKey(String id, PemCertKey pem) throws UnrecoverableKeyException {
+        if (pem.privateKey != null) return pem.privateKey;
+        Metrics.Span span = metrics.start(Metrics.Phase.key_decode);
+        Key key = pem.getPrivateKey();
+        span.end(id, pem.getPrivateKeyEncoded().length, 0);
+        return key;
+    }
+
+    /**
+     * Gets the certificate chain of an entry, recording the decoding time if it was not decoded yet
+     * @param id the keystore ID
+     * @param pem the certificate chain and key
+     * @return the certificate chain
+     */
+    protected Certificate[] certificateChain(String id, PemCertKey pem) {
+        if (pem.certificateChainPacked != null) return pem.certificateChainPacked;
+        Metrics.Span span = metrics.start(Metrics.Phase.certificate_decode);
+        Certificate[] chain = pem.getCertificateChain();
+        span.end(id, 0, 0);
+        return chain;
+    }
+
     /**
      * Minimal JSON escaping for output
      * Escapes only \ and ", as other special characters are not likely in domain or path,
@@ -181,29 +1012,158 @@ public class Converter {
         return s.replaceAll("[\"\\\\]", "\\\\$0");
     }
 
+    protected static final String USAGE =
+            "Usage: [-v] [--threads N] [--full] [--streaming] [--watch | --server PORT] [--format JKS|PKCS12] [--pkcs12-NAME VALUE]... [--lineage DIR | --deploy-hook] [--generations N] [--gc-dry-run] [--report FILE] [--prometheus FILE] <output-path> [<letsencrypt-live-path>] [<password>]"+
+            " or: [-v] --client PORT [--lineage DIR | --deploy-hook]";
+
     public static void main(String[] args) {
         // parse arguments
         boolean verbose = false;
+        int threads = 1;
+        boolean incremental = true;
+        boolean streaming = false;
+        boolean gcDryRun = false;
+        boolean watch = false;
+        KeyStoreFormat format = KeyStoreFormat.jks();
+        Path reportPath = null;
+        Path prometheusPath = null;
+        String lineage = null;
+        int serverPort = -1;
+        int keepGenerations = 0;
+        int clientPort = -1;
         String outputPath;
         String inputPath = "/etc/letsencrypt/live";
         // hardcoded password
         // need change default password
-        String password = "secret";
+        String password = DEFAULT_PASSWORD;
 
         int idx = 0;
-        if (idx < args.length && args[idx].equals("-v")) {
-            verbose = true;
-            idx++;
+        while (idx < args.length && args[idx].startsWith("-")) {
+            String opt = args[idx++];
+            if (opt.equals("-v")) {
+                verbose = true;
+            }
+            else if (opt.equals("--watch")) {
+                watch = true;
+            }
+            else if (opt.equals("--full")) {
+                incremental = false;
+            }
+            else if (opt.equals("--streaming")) {
+                streaming = true;
+            }
+            else if (opt.equals("--gc-dry-run")) {
+                gcDryRun = true;
+            }
+            else if (opt.equals("--format") && idx < args.length) {
+                try {
+                    format = KeyStoreFormat.of(args[idx++]);
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            }
+            else if (opt.startsWith("--pkcs12-") && idx < args.length) {
+                // eg. --pkcs12-macIterationCount 10000, must follow --format PKCS12
+                try {
+                    format.set(opt.substring("--pkcs12-".length()), args[idx++]);
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            }
+            else if (opt.equals("--lineage") && idx < args.length) {
+                lineage = args[idx++];
+            }
+            else if (opt.equals("--deploy-hook")) {
+                // certbot deploy hook: the renewed lineage is passed in the environment
+                lineage = System.getenv("RENEWED_LINEAGE");
+                if (lineage == null || lineage.isEmpty()) {
+                    System.err.println("RENEWED_LINEAGE is not set, --deploy-hook must be run by certbot");
+                    System.exit(1);
+                }
+                if (verbose) System.out.println("Renewed domains: "+System.getenv("RENEWED_DOMAINS"));
+            }
+            else if ((opt.equals("--server") || opt.equals("--client")) && idx < args.length) {
+                int port = -1;
+                try {
+                    port = Integer.parseInt(args[idx++]);
+                }
+                catch (NumberFormatException e) {
+                    // reported below
+                }
+                if (port < 1 || port > 65535) {
+                    System.err.println("Invalid port: "+args[idx-1]);
+                    System.exit(1);
+                }
+                if (opt.equals("--server")) serverPort = port;
+                else clientPort = port;
+            }
+            else if (opt.equals("--report") && idx < args.length) {
+                reportPath = Paths.get(args[idx++]);
+            }
+            else if (opt.equals("--prometheus") && idx < args.length) {
+                prometheusPath = Paths.get(args[idx++]);
+            }
+            else if (opt.equals("--generations") && idx < args.length) {
+                try {
+                    keepGenerations = Integer.parseInt(args[idx++]);
+                }
+                catch (NumberFormatException e) {
+                    keepGenerations = -1;
+                }
+                if (keepGenerations < Generations.MIN_KEEP) {
+                    System.err.println("Invalid generation count (at least "+Generations.MIN_KEEP+"): "+args[idx-1]);
+                    System.exit(1);
+                }
+            }
+            else if (opt.equals("--threads") && idx < args.length) {
+                try {
+                    threads = Integer.parseInt(args[idx++]);
+                }
+                catch (NumberFormatException e) {
+                    System.err.println("Invalid thread count: "+args[idx-1]);
+                    System.exit(1);
+                }
+            }
+            else {
+                System.err.println("Unknown option: "+opt+". "+USAGE);
+                System.exit(1);
+            }
+        }
+
+        if (clientPort > 0) {
+            // request a conversion from a running server
+            String command = lineage == null ? "full" : "lineage "+Paths.get(lineage).toAbsolutePath().normalize();
+            try {
+                String answer = Server.send(clientPort, command);
+                int status = Server.status(answer);
+                if (status == Server.QUEUED) {
+                    // as a converter queuing its request for the conversion in progress
+                    if (verbose) System.out.println(answer);
+                    System.exit(0);
+                }
+                if (status != 0) System.err.println(answer);
+                else if (verbose) System.out.println(answer);
+                System.exit(status);
+            }
+            catch (IOException e) {
+                System.err.println("Server not available on port "+clientPort+": "+e.getMessage());
+                System.exit(4);
+            }
         }
 
         if (idx >= args.length) {
-            System.err.println("Required argument missing. Usage: [-v] <output-path> [<letsencrypt-live-path>]");
+            System.err.println("Required argument missing. "+USAGE);
             System.exit(1);
         }
 
         outputPath = args[idx++];
         if (idx < args.length) inputPath = args[idx++];
-        
+        else if (lineage != null) inputPath = Paths.get(lineage).toAbsolutePath().normalize().getParent().toString();
+
         if (idx < args.length) password = args[idx++];
         // extra arguments are ignored
 
@@ -211,22 +1171,178 @@ public class Converter {
             System.out.println("Converting certificates: "+inputPath+" => "+outputPath);
         }
 
-        Converter c = new Converter(inputPath, outputPath);
-        c.setVerbose(verbose);
+        if ((watch || serverPort > 0) && lineage != null) {
+            System.err.println("--watch and --server can't be used with --lineage or --deploy-hook");
+            System.exit(1);
+        }
+        if (watch && serverPort > 0) {
+            System.err.println("--watch can't be used with --server");
+            System.exit(1);
+        }
 
-        if (!c.readCertificates()) {
-            System.err.println("Error reading certificates, aborting without writing anything");
-            System.exit(2);
+        Generations generations = keepGenerations > 0 ? new Generations(Paths.get(outputPath), keepGenerations) : null;
+
+        if (serverPort > 0) {
+            Server server = new Server(inputPath, outputPath, password, serverPort);
+            server.setVerbose(verbose);
+            server.setThreads(threads);
+            server.setStreaming(streaming);
+            server.setFormat(format);
+            server.setGenerations(generations);
+            server.setGcDryRun(gcDryRun);
+            server.setReports(reportPath, prometheusPath);
+            try {
+                server.run(incremental);
+                System.exit(0);
+            }
+            catch (IOException e) {
+                System.err.println("Server error: "+e.getMessage());
+                System.exit(4);
+            }
+        }
+
+        if (watch) {
+            Watcher w = new Watcher(inputPath, outputPath, password);
+            w.setVerbose(verbose);
+            w.setThreads(threads);
+            w.setStreaming(streaming);
+            w.setFormat(format);
+            w.setGenerations(generations);
+            w.setGcDryRun(gcDryRun);
+            w.setReports(reportPath, prometheusPath);
+            try {
+                w.run(incremental);
+            }
+            catch (IOException e) {
+                System.err.println("Watch error: "+e.getMessage());
+                System.exit(4);
+            }
+            catch (InterruptedException e) {
+                System.exit(0);
+            }
         }
 
-        if (!c.writeJKS(password)) {
-            System.err.println("Error writing output, aborting. Note: partial changes might be written already!");
-            System.exit(3);
+        Set<String> request = null;
+        if (lineage != null) {
+            String certID = lineageID(Paths.get(inputPath), Paths.get(lineage));
+            if (certID == null) System.exit(2);
+            request = Collections.singleton(certID);
+        }
+
+        // single writer: if a run is in progress, it converts this request too
+        Metrics metrics = new Metrics();
+        int status = 0;
+        try (RunLock lock = new RunLock(Paths.get(outputPath))) {
+            if (!lock.request(request)) {
+                if (verbose) System.out.println("Conversion in progress, request queued");
+                System.exit(0);
+            }
+
+            for (Set<String> pass = lock.next(); pass != null; pass = lock.next()) {
+                Converter c = new Converter(inputPath, outputPath);
+                c.setVerbose(verbose);
+                c.setThreads(threads);
+                c.setIncremental(incremental);
+                c.setStreaming(streaming);
+                c.setFormat(format);
+                c.setGenerations(generations);
+                c.setGcDryRun(gcDryRun);
+                c.setMetrics(metrics);
+
+                metrics.begin();
+                int passStatus = 0;
+                if (!c.readCertificates(RunLock.dirty(pass))) {
+                    System.err.println("Error reading certificates, aborting without writing anything");
+                    passStatus = 2;
+                }
+                else if (!c.writeJKS(password)) {
+                    System.err.println("Error writing output, aborting. The domain map is not updated.");
+                    passStatus = 3;
+                }
+                metrics.end(passStatus == 0);
+                status = Math.max(status, passStatus);
+            }
         }
+        catch (IOException e) {
+            System.err.println("Error locking output directory: "+e.getMessage());
+            System.exit(4);
+        }
+
+        if (verbose) System.out.print(metrics.summary());
+        metrics.writeReports(reportPath, prometheusPath);
 
-        // terminate normally
-        System.exit(0);
+        // terminate (normally if status is 0)
+        System.exit(status);
     }
 
 
+    /**
+     * A parsed lineage: certificate ID, certificate chain with key, the DNS names it covers and its manifest entry
+     */
+    protected static class Lineage {
+        final String certID;
+        /** the parsed certificate, null if the lineage is unchanged and not parsed, or not kept in streaming mode */
+        final PemCertKey pem;
+        /** true if the lineage was parsed (changed) */
+        final boolean parsed;
+        final List<String> domains;
+        final Manifest.Entry entry;
+
+        Lineage(String certID, PemCertKey pem, List<String> domains, Manifest.Entry entry) {
+            this(certID, pem, pem != null, domains, entry);
+        }
+
+        private Lineage(String certID, PemCertKey pem, boolean parsed, List<String> domains, Manifest.Entry entry) {
+            this.certID = certID;
+            this.pem = pem;
+            this.parsed = parsed;
+            this.domains = domains;
+            this.entry = entry;
+        }
+
+        /**
+         * @return the same lineage without the parsed certificate
+         */
+        Lineage withoutCertificate() {
+            return new Lineage(certID, null, parsed, domains, entry);
+        }
+    }
+
+    /**
+     * A task processing one lineage
+     */
+    @FunctionalInterface
+    protected interface LineageTask<I, T> {
+        T run(I item) throws Exception;
+    }
+
+    /**
+     * Failure of processing a lineage
+     */
+    protected static class LineageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final String certID;
+
+        LineageException(Object item, Throwable cause) {
+            super(cause);
+            this.certID = item instanceof Path ? ((Path) item).getFileName().toString() : String.valueOf(item);
+        }
+    }
+
+    /**
+     * Result of writing a keystore
+     */
+    protected static class KeyStoreOutput {
+        /** digest of the keystore in the output directory */
+        final String digest;
+        /** true if written to a temporary file, false if the existing keystore is kept */
+        final boolean changed;
+
+        KeyStoreOutput(String digest, boolean changed) {
+            this.digest = digest;
+            this.changed = changed;
+        }
+    }
+
 }
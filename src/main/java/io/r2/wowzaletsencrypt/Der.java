@@ -0,0 +1,320 @@
+package io.r2.wowzaletsencrypt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Minimal DER (ASN.1 distinguished encoding rules) reader and writer for the key and certificate structures used here
+ *
+ * The reader works in place on the encoded data (element contents are not copied unless asked for), the writer
+ * writes into a single buffer pre-sized with length(). Lengths are supported up to 4 bytes (definite form only).
+ */
+public class Der {
+
+    public static final int INTEGER = 0x02;
+    public static final int BIT_STRING = 0x03;
+    public static final int OCTET_STRING = 0x04;
+    public static final int NULL = 0x05;
+    public static final int OID = 0x06;
+    public static final int UTC_TIME = 0x17;
+    public static final int GENERALIZED_TIME = 0x18;
+    public static final int SEQUENCE = 0x30;
+
+    /** id-ecPublicKey: 1.2.840.10045.2.1 */
+    public static final byte[] OID_EC_PUBLIC_KEY = { 0x2a, (byte)0x86, 0x48, (byte)0xce, 0x3d, 0x02, 0x01 };
+    /** rsaEncryption: 1.2.840.113549.1.1.1 */
+    public static final byte[] OID_RSA = { 0x2a, (byte)0x86, 0x48, (byte)0x86, (byte)0xf7, 0x0d, 0x01, 0x01, 0x01 };
+
+    /** INTEGER 0, the version of PKCS#8 PrivateKeyInfo */
+    public static final byte[] VERSION_0 = encode(INTEGER, new byte[] { 0 });
+    /** AlgorithmIdentifier of RSA keys: SEQUENCE { rsaEncryption, NULL } */
+    public static final byte[] RSA_ALGORITHM = encode(SEQUENCE, encode(OID, OID_RSA), encode(NULL));
+
+    /**
+     * Sequential reader of DER elements in a byte array range
+     */
+    public static class Reader {
+        protected final byte[] data;
+        protected int pos;
+        protected final int end;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int end) {
+            this.data = data;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        /**
+         * @return the current position in the data (start of the next element)
+         */
+        public int position() {
+            return pos;
+        }
+
+        /**
+         * @return true if there are more elements
+         */
+        public boolean hasMore() {
+            return pos < end;
+        }
+
+        /**
+         * @return the tag of the next element
+         * @throws CertificateException at the end of data
+         */
+        public int peekTag() throws CertificateException {
+            if (pos >= end) throw new CertificateException("Unexpected end of DER data");
+            return data[pos] & 0xff;
+        }
+
+        /**
+         * Reads the header of the next element, which must have the specified tag
+         * @param tag the expected tag
+         * @return the content length, position is at the start of the content
+         * @throws CertificateException if the tag differs or the encoding is invalid
+         */
+        protected int header(int tag) throws CertificateException {
+            if (peekTag() != tag) throw new CertificateException(String.format("Invalid DER data: expected tag 0x%02x, found 0x%02x", tag, peekTag()));
+            pos++;
+            if (pos >= end) throw new CertificateException("Unexpected end of DER data");
+            int len = data[pos++] & 0xff;
+            if (len >= 0x80) {
+                int n = len & 0x7f;
+                if (n == 0 || n > 4) throw new CertificateException("Unsupported DER length");
+                len = 0;
+                for (int i = 0; i < n; i++) {
+                    if (pos >= end) throw new CertificateException("Unexpected end of DER data");
+                    len = (len << 8) | (data[pos++] & 0xff);
+                }
+            }
+            if (len < 0 || len > end-pos) throw new CertificateException("DER length exceeds data");
+            return len;
+        }
+
+        /**
+         * Enters a constructed element (eg. SEQUENCE), this reader continues after the element
+         * @param tag the expected tag
+         * @return reader of the element content
+         */
+        public Reader enter(int tag) throws CertificateException {
+            int len = header(tag);
+            Reader r = new Reader(data, pos, pos+len);
+            pos += len;
+            return r;
+        }
+
+        /**
+         * Reads the content of a primitive element
+         * @param tag the expected tag
+         * @return copy of the content
+         */
+        public byte[] read(int tag) throws CertificateException {
+            int len = header(tag);
+            byte[] content = new byte[len];
+            System.arraycopy(data, pos, content, 0, len);
+            pos += len;
+            return content;
+        }
+
+        /**
+         * Reads a primitive element and compares its content, without copying
+         * @param tag the expected tag
+         * @param expected the expected content
+         * @return true if the content equals the expected one
+         */
+        public boolean readEquals(int tag, byte[] expected) throws CertificateException {
+            int len = header(tag);
+            int start = pos;
+            pos += len;
+            if (len != expected.length) return false;
+            for (int i = 0; i < len; i++) {
+                if (data[start+i] != expected[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Compares the content of the next element, without copying and without moving to the next element
+         * @param tag the expected tag
+         * @param expected the expected content
+         * @return true if the tag and the content equal the expected ones
+         */
+        public boolean peekEquals(int tag, byte[] expected) throws CertificateException {
+            if (!hasMore() || peekTag() != tag) return false;
+            int start = pos;
+            try {
+                return readEquals(tag, expected);
+            }
+            finally {
+                pos = start;
+            }
+        }
+
+        /**
+         * Reads the content of a primitive element as an ASCII string (eg. IA5String)
+         * @param tag the expected tag
+         * @return the content as string
+         */
+        public String readString(int tag) throws CertificateException {
+            int len = header(tag);
+            String str = new String(data, pos, len, StandardCharsets.US_ASCII);
+            pos += len;
+            return str;
+        }
+
+        /**
+         * Reads an X.509 Time: UTCTime (YYMMDDHHMMSSZ) or GeneralizedTime (YYYYMMDDHHMMSSZ)
+         * @return the time in milliseconds from epoch
+         */
+        public long readTime() throws CertificateException {
+            int tag = peekTag();
+            if (tag != UTC_TIME && tag != GENERALIZED_TIME) throw new CertificateException("Invalid DER data: time expected");
+            int len = header(tag);
+            int p = pos;
+            pos += len;
+            int yearDigits = tag == UTC_TIME ? 2 : 4;
+            if (len != yearDigits+11 || data[p+len-1] != 'Z') throw new CertificateException("Unsupported time format");
+            int year = digits(p, yearDigits);
+            if (tag == UTC_TIME) year += year >= 50 ? 1900 : 2000;
+            p += yearDigits;
+            try {
+                return LocalDateTime.of(year, digits(p, 2), digits(p+2, 2), digits(p+4, 2), digits(p+6, 2), digits(p+8, 2))
+                        .toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            catch (java.time.DateTimeException e) {
+                throw new CertificateException("Invalid time", e);
+            }
+        }
+
+        /**
+         * @return the decimal value of n ASCII digits at the offset
+         */
+        private int digits(int offset, int n) throws CertificateException {
+            int v = 0;
+            for (int i = offset; i < offset+n; i++) {
+                int d = data[i]-'0';
+                if (d < 0 || d > 9) throw new CertificateException("Invalid digit in time");
+                v = v*10+d;
+            }
+            return v;
+        }
+
+        /**
+         * Skips the next element, regardless of its tag
+         */
+        public void skip() throws CertificateException {
+            int len = header(peekTag());
+            pos += len;
+        }
+    }
+
+    /**
+     * Writer of DER elements into a pre-sized buffer
+     */
+    public static class Writer {
+        protected final byte[] out;
+        protected int pos;
+
+        /**
+         * @param size the exact size of the encoded data (see length)
+         */
+        public Writer(int size) {
+            out = new byte[size];
+        }
+
+        /**
+         * Writes the tag and length of an element, the content must follow
+         * @param tag the tag
+         * @param contentLength the length of the content
+         * @return the writer itself for chaining
+         */
+        public Writer header(int tag, int contentLength) {
+            out[pos++] = (byte)tag;
+            if (contentLength < 0x80) {
+                out[pos++] = (byte)contentLength;
+            }
+            else {
+                int n = lengthBytes(contentLength);
+                out[pos++] = (byte)(0x80 | n);
+                for (int i = n-1; i >= 0; i--) out[pos++] = (byte)(contentLength >> (8*i));
+            }
+            return this;
+        }
+
+        /**
+         * Writes raw (already encoded) data
+         * @param data the data
+         * @return the writer itself for chaining
+         */
+        public Writer write(byte[] data) {
+            return write(data, 0, data.length);
+        }
+
+        /**
+         * Writes raw (already encoded) data
+         * @param data the data
+         * @param offset start of the data to write
+         * @param length length of the data to write
+         * @return the writer itself for chaining
+         */
+        public Writer write(byte[] data, int offset, int length) {
+            System.arraycopy(data, offset, out, pos, length);
+            pos += length;
+            return this;
+        }
+
+        /**
+         * Writes a complete element
+         * @param tag the tag
+         * @param content the content
+         * @return the writer itself for chaining
+         */
+        public Writer element(int tag, byte[] content) {
+            return header(tag, content.length).write(content);
+        }
+
+        /**
+         * @return the encoded data
+         * @throws IllegalStateException if the buffer is not filled exactly
+         */
+        public byte[] toByteArray() {
+            if (pos != out.length) throw new IllegalStateException("DER size mismatch: "+pos+" of "+out.length+" written");
+            return out;
+        }
+    }
+
+    /**
+     * @param contentLength length of the content
+     * @return length of the encoded element (tag, length and content)
+     */
+    public static int length(int contentLength) {
+        return 1 + (contentLength < 0x80 ? 1 : 1+lengthBytes(contentLength)) + contentLength;
+    }
+
+    /**
+     * @return number of bytes needed for the long form of the length
+     */
+    protected static int lengthBytes(int len) {
+        return len > 0xffffff ? 4 : len > 0xffff ? 3 : len > 0xff ? 2 : 1;
+    }
+
+    /**
+     * Encodes an element
+     * @param tag the tag
+     * @param contents the content, concatenated
+     * @return the encoded element
+     */
+    public static byte[] encode(int tag, byte[]... contents) {
+        int len = 0;
+        for (byte[] c : contents) len += c.length;
+        Writer w = new Writer(length(len)).header(tag, len);
+        for (byte[] c : contents) w.write(c);
+        return w.toByteArray();
+    }
+}
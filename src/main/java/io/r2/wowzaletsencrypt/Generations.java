@@ -0,0 +1,171 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generational output layout: every conversion writes a complete generation directory, which is published by
+ * atomically switching a symbolic link to it
+ *
+ * Layout in the output directory:
+ *      gen-1/, gen-2/, ...     keystores, domain map and manifest of a conversion
+ *      current                 symbolic link to the published generation
+ * Wowza uses current/jksmap.txt, which refers to the keystores of the same generation, so it always loads a
+ * consistent snapshot. A new generation starts with hard links to the files of the current one (or to the files
+ * of the flat layout in the output directory, when switching to generations), so unchanged keystores are neither
+ * copied nor rewritten. Generations without changes are discarded, old generations are deleted, only the
+ * newest ones (and the current one) are kept. At least two are kept, as Wowza may still be loading the keystores of
+ * the previous generation when the link is switched.
+ *
+ * When switching an existing output directory to generations, the keystores, the domain map and the manifest of
+ * the flat layout are left in the output directory, as Wowza may still use them until its configuration refers to
+ * current/jksmap.txt. They are not deleted by the converter and have to be removed by hand after that.
+ */
+public class Generations {
+
+    /** Name of the symbolic link to the published generation */
+    public static final String CURRENT = "current";
+    /** Prefix of the generation directory names, followed by the generation number */
+    public static final String PREFIX = "gen-";
+    /** Minimum number of generations to keep: the current one and the previous one */
+    public static final int MIN_KEEP = 2;
+
+    protected final Path root;
+    protected final int keep;
+
+    /**
+     * @param root the output directory
+     * @param keep number of generations to keep, at least MIN_KEEP
+     * @throws IllegalArgumentException if less than MIN_KEEP generations are to be kept
+     */
+    public Generations(Path root, int keep) {
+        if (keep < MIN_KEEP) throw new IllegalArgumentException("At least "+MIN_KEEP+" generations must be kept");
+        this.root = root;
+        this.keep = keep;
+    }
+
+    /**
+     * @return the published generation directory, or null if nothing was published yet
+     * @throws IOException if the link can't be read
+     */
+    public Path current() throws IOException {
+        Path link = root.resolve(CURRENT);
+        if (!Files.isSymbolicLink(link)) return null;
+        return root.resolve(Files.readSymbolicLink(link));
+    }
+
+    /**
+     * Creates a new generation, with links to the files of the previous one
+     *
+     * @param previous the directory of the previous output (generation or flat layout)
+     * @return the new generation directory
+     * @throws IOException on error, the partial generation is deleted
+     */
+    public Path create(Path previous) throws IOException {
+        int number = 0;
+        for (Path gen : list()) number = Math.max(number, number(gen));
+        Path gen = Files.createDirectory(root.resolve(PREFIX+(number+1)));
+
+        try (Stream<Path> files = Files.list(previous)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") || name.endsWith(".tmp") || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) continue;
+                try {
+                    Files.createLink(gen.resolve(name), file);
+                }
+                catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.copy(file, gen.resolve(name), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+        catch (IOException e) {
+            discard(gen);
+            throw e;
+        }
+        return gen;
+    }
+
+    /**
+     * Publishes a generation: switches the current link to it atomically, then deletes the old generations
+     * Deleting the old generations is best effort: the generation is published even if it fails
+     *
+     * @param gen the generation directory
+     * @throws IOException if the link can't be switched, the generation is not published
+     */
+    public void publish(Path gen) throws IOException {
+        Path tmp = root.resolve(CURRENT+".tmp");
+        Files.deleteIfExists(tmp);
+        Files.createSymbolicLink(tmp, gen.getFileName());
+        Files.move(tmp, root.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            collect();
+        }
+        catch (IOException e) {
+            System.err.println("Error deleting old generations: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes an unpublished generation (best effort)
+     * @param gen the generation directory
+     */
+    public void discard(Path gen) {
+        try (Stream<Path> files = Files.walk(gen)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Error deleting generation "+gen.getFileName()+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the generations older than the newest ones to keep, the current generation is always kept
+     * @return the deleted generation directories
+     * @throws IOException if the output directory can't be listed
+     */
+    public List<Path> collect() throws IOException {
+        Path current = current();
+        List<Path> gens = list();
+        gens.sort(Comparator.comparingInt(Generations::number).reversed());
+
+        List<Path> deleted = new ArrayList<>();
+        for (Path gen : gens.subList(Math.min(keep, gens.size()), gens.size())) {
+            if (current != null && gen.getFileName().equals(current.getFileName())) continue;
+            discard(gen);
+            deleted.add(gen);
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the generation directories
+     */
+    protected List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(p -> number(p) > 0 && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param gen a path in the output directory
+     * @return its generation number, 0 if it is not a generation
+     */
+    protected static int number(Path gen) {
+        String name = gen.getFileName().toString();
+        if (!name.startsWith(PREFIX)) return 0;
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.r2.wowzaletsencrypt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the conversion phases
+ *
+ * Only referenced through PhaseEvents.load, so the converter still runs on JVMs without Flight Recorder.
+ * The events are recorded with -XX:StartFlightRecording (or jcmd JFR.start), and can be viewed eg. with
+ *      jfr print --categories "Wowza Let's Encrypt Converter" recording.jfr
+ */
+public class JfrPhaseEvents implements PhaseEvents {
+
+    @Override
+    public Object begin(Metrics.Phase phase) {
+        PhaseEvent event;
+        switch (phase) {
+            case read: event = new ReadEvent(); break;
+            case parse: event = new ParseEvent(); break;
+            case key_decode: event = new KeyDecodeEvent(); break;
+            case encode: event = new EncodeEvent(); break;
+            case write: event = new WriteEvent(); break;
+            default: return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit(Object event, String certID, long bytes, int sans) {
+        if (event == null) return;
+        PhaseEvent e = (PhaseEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.certID = certID;
+            e.bytes = bytes;
+            e.sans = sans;
+            e.commit();
+        }
+    }
+
+    /**
+     * Common fields of the phase events
+     */
+    @Category("Wowza Let's Encrypt Converter")
+    static abstract class PhaseEvent extends Event {
+        @Label("Certificate ID")
+        @Description("Lineage or keystore processed")
+        String certID;
+
+        @Label("Bytes")
+        @Description("Bytes read or written")
+        @DataAmount
+        long bytes;
+
+        @Label("SAN Count")
+        @Description("Number of DNS names in the certificate, 0 if not known")
+        int sans;
+    }
+
+    @Name("io.r2.wowzaletsencrypt.Read")
+    @Label("Lineage Read")
+    static class ReadEvent extends PhaseEvent {
+    }
+
+    @Name("io.r2.wowzaletsencrypt.Parse")
+    @Label("Lineage Parse")
+    static class ParseEvent extends PhaseEvent {
+    }
+
+    @Name("io.r2.wowzaletsencrypt.KeyDecode")
+    @Label("Private Key Decode")
+    static class KeyDecodeEvent extends PhaseEvent {
+    }
+
+    @Name("io.r2.wowzaletsencrypt.Encode")
+    @Label("Keystore Encode")
+    static class EncodeEvent extends PhaseEvent {
+    }
+
+    @Name("io.r2.wowzaletsencrypt.Write")
+    @Label("Keystore Write")
+    static class WriteEvent extends PhaseEvent {
+    }
+}
@@ -0,0 +1,167 @@
+package io.r2.wowzaletsencrypt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Direct writer of JKS keystores with a single private key entry, without the KeyStore provider
+ *
+ * Produces the same encoding as KeyStore.getInstance("JKS") with setKeyEntry and store (for the same salt and
+ * creation date), but takes the key and the certificates in their encoded form, so nothing has to be decoded,
+ * and writes into a buffer reused by the calling thread. The encoding is the one of Java 8 to 17, newer versions
+ * omit the NULL parameters of the key protector algorithm (both forms are loaded by every version).
+ *
+ * JKS format (all integers big endian):
+ *      magic 0xfeedfeed, version 2, entry count
+ *      entry: tag 1 (private key), alias (UTF), creation date (millis), protected key length and data,
+ *             certificate count, for each certificate: type "X.509" (UTF), length and data
+ *      SHA-1 of (password as UTF-16BE, "Mighty Aphrodite", all the above)
+ * The protected key is an EncryptedPrivateKeyInfo with the proprietary Sun key protector algorithm:
+ *      salt (20 random bytes), PKCS#8 key XOR SHA-1 key stream of (password, salt), SHA-1 of (password, PKCS#8 key)
+ */
+public class JksWriter {
+
+    protected static final int MAGIC = 0xfeedfeed;
+    protected static final int VERSION_2 = 2;
+    protected static final int PRIVATE_KEY_TAG = 1;
+    protected static final int DIGEST_LENGTH = 20;
+    protected static final int SALT_LENGTH = 20;
+
+    protected static final byte[] CERTIFICATE_TYPE = "X.509".getBytes(StandardCharsets.US_ASCII);
+    protected static final byte[] WHITENER = "Mighty Aphrodite".getBytes(StandardCharsets.UTF_8);
+    /** Sun JDK key protector: 1.3.6.1.4.1.42.2.17.1.1 */
+    protected static final byte[] OID_KEY_PROTECTOR = { 0x2b, 0x06, 0x01, 0x04, 0x01, 0x2a, 0x02, 0x11, 0x01, 0x01 };
+    /** AlgorithmIdentifier of the key protector: SEQUENCE { OID, NULL } */
+    protected static final byte[] KEY_PROTECTOR_ALGORITHM = Der.encode(Der.SEQUENCE, Der.encode(Der.OID, OID_KEY_PROTECTOR), Der.encode(Der.NULL));
+
+    protected static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Output buffer of the thread, grows as needed */
+    protected static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+    /** MessageDigest is not thread safe */
+    protected static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // SHA-1 is mandatory in every Java platform
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * Encodes a JKS keystore with a single private key entry, created now with a random salt
+     * The result is a view of the thread's buffer: it is valid until the next call in the same thread
+     *
+     * @param alias the alias of the entry (lowercase, as stored by the JKS provider)
+     * @param pkcs8 the private key in PKCS#8 format
+     * @param chain the certificate chain in DER format
+     * @param password the keystore and key password
+     * @return the encoded keystore between position and limit
+     */
+    public static ByteBuffer encode(String alias, byte[] pkcs8, List<byte[]> chain, char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return encode(alias, pkcs8, chain, password, System.currentTimeMillis(), salt);
+    }
+
+    /**
+     * Encodes a JKS keystore with a single private key entry
+     * The result is a view of the thread's buffer: it is valid until the next call in the same thread
+     *
+     * @param alias the alias of the entry (lowercase, as stored by the JKS provider)
+     * @param pkcs8 the private key in PKCS#8 format
+     * @param chain the certificate chain in DER format
+     * @param password the keystore and key password
+     * @param date creation date of the entry (millis from epoch)
+     * @param salt salt of the key protection (20 bytes)
+     * @return the encoded keystore between position and limit
+     */
+    protected static ByteBuffer encode(String alias, byte[] pkcs8, List<byte[]> chain, char[] password, long date, byte[] salt) {
+        byte[] aliasBytes = alias.getBytes(StandardCharsets.UTF_8);
+        if (aliasBytes.length > 0xffff) throw new IllegalArgumentException("Alias too long");
+
+        int protectedLength = SALT_LENGTH + pkcs8.length + DIGEST_LENGTH;
+        int keyContent = KEY_PROTECTOR_ALGORITHM.length + Der.length(protectedLength);
+        int keyLength = Der.length(keyContent);
+
+        int size = 12 + 4 + 2 + aliasBytes.length + 8 + 4 + keyLength + 4 + DIGEST_LENGTH;
+        for (byte[] cert : chain) size += 2 + CERTIFICATE_TYPE.length + 4 + cert.length;
+
+        byte[] buffer = BUFFER.get();
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length*2)];
+            BUFFER.set(buffer);
+        }
+        ByteBuffer out = ByteBuffer.wrap(buffer, 0, size);
+        byte[] passwordBytes = passwordBytes(password);
+        MessageDigest md = SHA1.get();
+
+        out.putInt(MAGIC).putInt(VERSION_2).putInt(1);
+        out.putInt(PRIVATE_KEY_TAG).putShort((short)aliasBytes.length).put(aliasBytes).putLong(date);
+
+        // EncryptedPrivateKeyInfo
+        out.putInt(keyLength);
+        header(out, Der.SEQUENCE, keyContent);
+        out.put(KEY_PROTECTOR_ALGORITHM);
+        header(out, Der.OCTET_STRING, protectedLength);
+        out.put(salt);
+        byte[] xor = salt;
+        for (int offset = 0; offset < pkcs8.length; offset += DIGEST_LENGTH) {
+            md.update(passwordBytes);
+            md.update(xor);
+            xor = md.digest();
+            int n = Math.min(DIGEST_LENGTH, pkcs8.length-offset);
+            for (int i = 0; i < n; i++) out.put((byte)(pkcs8[offset+i] ^ xor[i]));
+        }
+        md.update(passwordBytes);
+        md.update(pkcs8);
+        out.put(md.digest());
+
+        out.putInt(chain.size());
+        for (byte[] cert : chain) {
+            out.putShort((short)CERTIFICATE_TYPE.length).put(CERTIFICATE_TYPE).putInt(cert.length).put(cert);
+        }
+
+        // integrity check of the whole keystore
+        md.update(passwordBytes);
+        md.update(WHITENER);
+        md.update(buffer, 0, out.position());
+        out.put(md.digest());
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Writes the tag and length of a DER element
+     */
+    protected static void header(ByteBuffer out, int tag, int contentLength) {
+        out.put((byte)tag);
+        if (contentLength < 0x80) {
+            out.put((byte)contentLength);
+        }
+        else {
+            int n = Der.lengthBytes(contentLength);
+            out.put((byte)(0x80 | n));
+            for (int i = n-1; i >= 0; i--) out.put((byte)(contentLength >> (8*i)));
+        }
+    }
+
+    /**
+     * @param password the password
+     * @return the password as UTF-16BE bytes, as used by the JKS provider
+     */
+    protected static byte[] passwordBytes(char[] password) {
+        byte[] bytes = new byte[password.length*2];
+        for (int i = 0; i < password.length; i++) {
+            bytes[i*2] = (byte)(password[i] >> 8);
+            bytes[i*2+1] = (byte)password[i];
+        }
+        return bytes;
+    }
+}
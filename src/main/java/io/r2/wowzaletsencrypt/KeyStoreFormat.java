@@ -0,0 +1,143 @@
+package io.r2.wowzaletsencrypt;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Output keystore format: JKS or PKCS12
+ *
+ * For PKCS12 the protection algorithms and iteration counts can be tuned with the keystore.pkcs12.* properties
+ * of the JDK (supported since Java 8u301 and 11.0.12). These are set as system properties while encoding,
+ * and restored afterwards, so they don't affect the keystores of later conversions in the same JVM (watch and
+ * server mode) with other parameters.
+ */
+public class KeyStoreFormat {
+
+    /** Tunable PKCS12 properties (without the keystore.pkcs12. prefix) */
+    public static final List<String> PKCS12_PROPERTIES = Arrays.asList(
+            "keyProtectionAlgorithm", "keyPbeIterationCount",
+            "certProtectionAlgorithm", "certPbeIterationCount",
+            "macAlgorithm", "macIterationCount"
+    );
+
+    protected final String type;
+    protected final String extension;
+    /** PKCS12 property name -> value (sorted to keep description stable) */
+    protected TreeMap<String, String> properties;
+
+    protected KeyStoreFormat(String type, String extension) {
+        this.type = type;
+        this.extension = extension;
+        properties = new TreeMap<>();
+    }
+
+    /**
+     * @return the default format (JKS)
+     */
+    public static KeyStoreFormat jks() {
+        return new KeyStoreFormat("JKS", "jks");
+    }
+
+    /**
+     * @return PKCS12 format with the JDK default parameters
+     */
+    public static KeyStoreFormat pkcs12() {
+        return new KeyStoreFormat("PKCS12", "p12");
+    }
+
+    /**
+     * @param type JKS or PKCS12 (case insensitive)
+     * @return the format
+     * @throws IllegalArgumentException for unknown types
+     */
+    public static KeyStoreFormat of(String type) {
+        switch (type.toUpperCase()) {
+            case "JKS": return jks();
+            case "PKCS12": return pkcs12();
+            default: throw new IllegalArgumentException("Unknown keystore type: "+type);
+        }
+    }
+
+    /**
+     * Sets a PKCS12 protection parameter
+     *
+     * @param name one of PKCS12_PROPERTIES
+     * @param value the value (algorithm name, NONE, or iteration count)
+     * @return the format itself for chaining
+     * @throws IllegalArgumentException for unknown names or for JKS format
+     */
+    public KeyStoreFormat set(String name, String value) {
+        if (!type.equals("PKCS12")) throw new IllegalArgumentException(name+" can be set only for PKCS12 format");
+        if (!PKCS12_PROPERTIES.contains(name)) throw new IllegalArgumentException("Unknown PKCS12 parameter: "+name);
+        if (name.endsWith("Count") && !value.matches("[1-9][0-9]*")) {
+            throw new IllegalArgumentException("Invalid iteration count for "+name+": "+value);
+        }
+        properties.put(name, value);
+        return this;
+    }
+
+    /**
+     * @return keystore type, as in KeyStore.getInstance and in the keyStoreType of the domain map
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return keystore file extension (without dot)
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return the PKCS12 parameters set
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Sets the protection parameters as system properties, must be called before storing keystores
+     * @return the previous values of the properties set (null if not set), to be restored after storing
+     */
+    public Map<String, String> apply() {
+        Map<String, String> previous = new HashMap<>();
+        properties.forEach((name, value) -> previous.put(name, System.setProperty("keystore.pkcs12."+name, value)));
+        return previous;
+    }
+
+    /**
+     * Restores the system properties changed by apply
+     * @param previous the previous values returned by apply
+     */
+    public void restore(Map<String, String> previous) {
+        previous.forEach((name, value) -> {
+            if (value == null) System.clearProperty("keystore.pkcs12."+name);
+            else System.setProperty("keystore.pkcs12."+name, value);
+        });
+    }
+
+    /**
+     * @return a new, empty keystore of this format
+     * @throws KeyStoreException if the format is not supported
+     */
+    public KeyStore newKeyStore() throws KeyStoreException {
+        return KeyStore.getInstance(type);
+    }
+
+    /**
+     * @return description of the format with all parameters
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type);
+        properties.forEach((name, value) -> sb.append(' ').append(name).append('=').append(value));
+        return sb.toString();
+    }
+}
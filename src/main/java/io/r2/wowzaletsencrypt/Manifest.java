@@ -0,0 +1,251 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Manifest of a previous conversion, stored in the output directory
+ *
+ * For every lineage it records the fingerprint of the input files (size, modification time and content digest),
+ * the key algorithm, the end of the validity period, the keystore it was written to (with its digest) and the
+ * domain names covered,
+ * so unchanged lineages can be skipped without parsing the certificates again.
+ *
+ * It also records the keystore files written by the converter (owned files), so keystores no longer in the domain
+ * map can be deleted, without ever touching other files in the output directory.
+ *
+ * File format: a header line followed by one tab separated line per lineage:
+ *      certID  chainSize  chainMtime  keySize  keyMtime  inputDigest  jksDigest  keyAlgorithm  notAfter  keyStore  domain,domain,...
+ * and a comment line per owned file (ignored by older versions):
+ *      # owned fileName
+ * Manifests of older versions are ignored (everything is converted again).
+ */
+public class Manifest {
+
+    /** Name of the manifest file in the output directory */
+    public static final String FILE_NAME = "manifest.txt";
+
+    protected static final String HEADER = "# wowza-letsencrypt-converter manifest v3";
+    protected static final String SETTINGS_PREFIX = "# settings ";
+    protected static final String OWNED_PREFIX = "# owned ";
+
+    /** Digest of the output settings (keystore password and format) used for the recorded keystores */
+    protected String settingsDigest;
+    /** Certificate ID -> entry (use linked map to keep ordering) */
+    protected LinkedHashMap<String, Entry> entries;
+    /** Names of the files in the output directory written by the converter */
+    protected TreeSet<String> owned;
+
+    /**
+     * Create an empty manifest
+     */
+    public Manifest() {
+        entries = new LinkedHashMap<>();
+        owned = new TreeSet<>();
+    }
+
+    /**
+     * Loads the manifest from the output directory
+     * A missing or unreadable manifest results in an empty one, so everything is converted again
+     *
+     * @param outputPath the output directory
+     * @return the loaded manifest
+     */
+    public static Manifest load(Path outputPath) {
+        Manifest m = new Manifest();
+        Path file = outputPath.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) return m;
+
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER)) return new Manifest();
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.startsWith(SETTINGS_PREFIX)) {
+                    m.settingsDigest = line.substring(SETTINGS_PREFIX.length());
+                    continue;
+                }
+                if (line.startsWith(OWNED_PREFIX)) {
+                    m.owned.add(line.substring(OWNED_PREFIX.length()));
+                    continue;
+                }
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\t", -1);
+                if (f.length != 11) return new Manifest();
+                Entry e = new Entry(f[0]);
+                e.chainSize = Long.parseLong(f[1]);
+                e.chainMtime = Long.parseLong(f[2]);
+                e.keySize = Long.parseLong(f[3]);
+                e.keyMtime = Long.parseLong(f[4]);
+                e.inputDigest = f[5];
+                e.jksDigest = f[6];
+                e.keyAlgorithm = f[7];
+                e.notAfter = Long.parseLong(f[8]);
+                e.keyStore = f[9];
+                e.domains = f[10].isEmpty() ? Collections.emptyList() : Arrays.asList(f[10].split(","));
+                m.put(e);
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // corrupt manifest is the same as no manifest
+            return new Manifest();
+        }
+        return m;
+    }
+
+    /**
+     * Renders the manifest file contents (published to the output directory by the converter, if changed)
+     *
+     * @return the manifest file contents
+     */
+    public byte[] render() {
+        StringBuilder f = new StringBuilder();
+        f.append(HEADER).append('\n');
+        if (settingsDigest != null) f.append(SETTINGS_PREFIX).append(settingsDigest).append('\n');
+        for (Entry e : entries.values()) {
+            f.append(String.format("%s\t%d\t%d\t%d\t%d\t%s\t%s\t%s\t%d\t%s\t%s\n",
+                    e.certID, e.chainSize, e.chainMtime, e.keySize, e.keyMtime,
+                    e.inputDigest, e.jksDigest, e.keyAlgorithm, e.notAfter, e.keyStore, String.join(",", e.domains)));
+        }
+        for (String name : owned) f.append(OWNED_PREFIX).append(name).append('\n');
+        return f.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param certID the certificate ID
+     * @return the entry or null if not recorded
+     */
+    public Entry get(String certID) {
+        return entries.get(certID);
+    }
+
+    /**
+     * Adds or replaces an entry
+     * @param e the entry
+     */
+    public void put(Entry e) {
+        entries.put(e.certID, e);
+    }
+
+    /**
+     * @return the recorded entries in insertion order
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * @return names of the files in the output directory written by the converter
+     */
+    public Set<String> getOwned() {
+        return owned;
+    }
+
+    /**
+     * @param names names of the files in the output directory written by the converter
+     */
+    public void setOwned(Collection<String> names) {
+        owned = new TreeSet<>(names);
+    }
+
+    /**
+     * @param settings the output settings (keystore password and format)
+     * @return true if the recorded keystores were written with these settings
+     */
+    public boolean matchesSettings(String settings) {
+        return settingsDigest != null && settingsDigest.equals(digest(settings.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Records the output settings (as digest, as it contains the password)
+     * @param settings the output settings (keystore password and format)
+     */
+    public void setSettings(String settings) {
+        settingsDigest = digest(settings.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param data the data to digest
+     * @return hex encoded SHA-256 digest
+     */
+    public static String digest(byte[] data) {
+        MessageDigest md = newDigest();
+        return hex(md.digest(data));
+    }
+
+    /**
+     * @param data the data to digest, between position and limit (consumed)
+     * @return hex encoded SHA-256 digest
+     */
+    public static String digest(ByteBuffer data) {
+        MessageDigest md = newDigest();
+        md.update(data);
+        return hex(md.digest());
+    }
+
+    /**
+     * @return a new SHA-256 message digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory in every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes binary data
+     * @return lowercase hex representation
+     */
+    public static String hex(byte[] bytes) {
+        char[] out = new char[bytes.length*2];
+        final char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < bytes.length; i++) {
+            out[i*2] = digits[(bytes[i] >> 4) & 0xf];
+            out[i*2+1] = digits[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Recorded state of a single lineage
+     */
+    public static class Entry {
+        public final String certID;
+        public long chainSize;
+        public long chainMtime;
+        public long keySize;
+        public long keyMtime;
+        public String inputDigest;
+        public String jksDigest;
+        /** key algorithm of the certificate (RSA or EC) */
+        public String keyAlgorithm;
+        /** end of the validity period of the certificate (epoch millis) */
+        public long notAfter;
+        /** ID of the keystore holding this lineage (its own certID, or the paired lineage's) */
+        public String keyStore;
+        public List<String> domains;
+
+        public Entry(String certID) {
+            this.certID = certID;
+            keyStore = certID;
+            domains = Collections.emptyList();
+        }
+
+        /**
+         * @param other another entry
+         * @return true if the size and modification time of both input files are the same
+         */
+        public boolean sameFileStats(Entry other) {
+            return chainSize == other.chainSize && chainMtime == other.chainMtime &&
+                    keySize == other.keySize && keyMtime == other.keyMtime;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and counters of the conversion phases
+ *
+ * Every phase has a count, a total and maximum time and a latency histogram with fixed buckets. Recording is
+ * lock free, so it can be called from the reader and writer threads. The same instance can be used for
+ * several runs (eg. in watch mode), then the values accumulate and the last run is reported separately.
+ *
+ * The metrics can be written as a JSON run report, and in the Prometheus text format for the textfile collector
+ * of node_exporter (both files are written atomically, as required by the collector).
+ */
+public class Metrics {
+
+    /** Conversion phases */
+    public enum Phase {
+        /** listing the lineage directories */
+        scan,
+        /** reading the input files of a lineage (and computing their digest) */
+        read,
+        /** parsing the PEM input and the certificate DER */
+        parse,
+        /** decoding (validating) the certificate chain of a lineage read */
+        certificate_decode,
+        /** decoding (validating) the private key of a lineage read */
+        key_decode,
+        /** encoding a keystore */
+        encode,
+        /** writing a keystore to a temporary file */
+        write,
+        /** moving a keystore in place, publishing the domain map and the manifest */
+        publish
+    }
+
+    /** Counters */
+    public enum Counter {
+        lineages, lineages_parsed, lineages_skipped,
+        keystores_written, keystores_unchanged, keystores_deleted,
+        bytes_read, bytes_written
+    }
+
+    /** Upper bounds of the histogram buckets in nanoseconds (the last bucket is unbounded) */
+    protected static final long[] BUCKETS = {
+            10000L, 50000L, 100000L, 500000L, 1000000L, 5000000L,
+            10000000L, 50000000L, 100000000L, 500000000L, 1000000000L, 5000000000L
+    };
+
+    protected static final String PREFIX = "wowza_letsencrypt_";
+
+    /** Flight Recorder events of the phases, if supported by the JVM */
+    protected static final PhaseEvents EVENTS = PhaseEvents.load();
+
+    protected final LongAdder[] counts;
+    protected final LongAdder[] totals;
+    protected final AtomicLong[] max;
+    /** Phase ordinal * (bucket count + 1) + bucket -> number of events (not cumulative) */
+    protected final AtomicLongArray histogram;
+    protected final LongAdder[] counters;
+
+    protected int runs;
+    protected long runStart;
+    protected long lastStart;
+    protected long lastDuration;
+    protected boolean lastSuccess;
+
+    public Metrics() {
+        int phases = Phase.values().length;
+        counts = new LongAdder[phases];
+        totals = new LongAdder[phases];
+        max = new AtomicLong[phases];
+        for (int i = 0; i < phases; i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+            max[i] = new AtomicLong();
+        }
+        histogram = new AtomicLongArray(phases*(BUCKETS.length+1));
+        counters = new LongAdder[Counter.values().length];
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+    }
+
+    /**
+     * Starts timing a phase, also starts its Flight Recorder event (if any)
+     * @param phase the phase
+     * @return the started phase, to be ended with Span.end
+     */
+    public Span start(Phase phase) {
+        return new Span(phase);
+    }
+
+    /**
+     * Records a phase which started at the given time and ends now
+     * @param phase the phase
+     * @param startNanos the start, from System.nanoTime()
+     */
+    public void record(Phase phase, long startNanos) {
+        long nanos = System.nanoTime()-startNanos;
+        int p = phase.ordinal();
+        counts[p].increment();
+        totals[p].add(nanos);
+        max[p].accumulateAndGet(nanos, Math::max);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && nanos > BUCKETS[bucket]) bucket++;
+        histogram.incrementAndGet(p*(BUCKETS.length+1)+bucket);
+    }
+
+    /**
+     * @param counter the counter
+     * @param delta the value to add
+     */
+    public void add(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    /**
+     * @param phase the phase
+     * @return number of times the phase was recorded
+     */
+    public long getCount(Phase phase) {
+        return counts[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase the phase
+     * @return total time of the phase in nanoseconds
+     */
+    public long getTotalNanos(Phase phase) {
+        return totals[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param counter the counter
+     * @return the value of the counter
+     */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Marks the start of a run
+     */
+    public synchronized void begin() {
+        runStart = System.nanoTime();
+        lastStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the end of a run
+     * @param success true if the run was successful
+     */
+    public synchronized void end(boolean success) {
+        lastDuration = System.nanoTime()-runStart;
+        lastSuccess = success;
+        runs++;
+    }
+
+    /**
+     * Writes the reports, errors are reported but otherwise ignored (the conversion itself is done)
+     *
+     * @param json path of the JSON run report, or null
+     * @param prometheus path of the Prometheus textfile, or null
+     * @return true if successful
+     */
+    public boolean writeReports(Path json, Path prometheus) {
+        try {
+            if (json != null) write(json, toJson());
+            if (prometheus != null) write(prometheus, toPrometheus());
+            return true;
+        }
+        catch (IOException e) {
+            System.err.println("Error writing metrics: "+e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes a file atomically (write to .tmp file, then rename)
+     */
+    protected static void write(Path target, String contents) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName()+".tmp");
+        Files.write(tmp, contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the metrics as a JSON run report
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"start\": \"").append(Instant.ofEpochMilli(lastStart)).append("\",\n");
+        sb.append("  \"durationSeconds\": ").append(seconds(lastDuration)).append(",\n");
+        sb.append("  \"success\": ").append(lastSuccess).append(",\n");
+        sb.append("  \"runs\": ").append(runs).append(",\n");
+
+        sb.append("  \"counters\": {");
+        for (Counter c : Counter.values()) {
+            sb.append(c.ordinal() == 0 ? "\n" : ",\n");
+            sb.append("    \"").append(c).append("\": ").append(get(c));
+        }
+        sb.append("\n  },\n");
+
+        sb.append("  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            int p = phase.ordinal();
+            sb.append(p == 0 ? "\n" : ",\n");
+            sb.append("    \"").append(phase).append("\": {");
+            sb.append("\"count\": ").append(getCount(phase));
+            sb.append(", \"totalSeconds\": ").append(seconds(getTotalNanos(phase)));
+            sb.append(", \"maxSeconds\": ").append(seconds(max[p].get()));
+            sb.append(", \"buckets\": {");
+            for (int b = 0; b <= BUCKETS.length; b++) {
+                if (b > 0) sb.append(", ");
+                sb.append('"').append(bucketLabel(b)).append("\": ").append(histogram.get(p*(BUCKETS.length+1)+b));
+            }
+            sb.append("}}");
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        String name = PREFIX+"phase_seconds";
+        sb.append("# HELP ").append(name).append(" Time spent in the conversion phases.\n");
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        for (Phase phase : Phase.values()) {
+            int p = phase.ordinal();
+            long cumulative = 0;
+            for (int b = 0; b <= BUCKETS.length; b++) {
+                cumulative += histogram.get(p*(BUCKETS.length+1)+b);
+                sb.append(name).append("_bucket{phase=\"").append(phase).append("\",le=\"").append(bucketLabel(b))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{phase=\"").append(phase).append("\"} ").append(seconds(getTotalNanos(phase))).append('\n');
+            sb.append(name).append("_count{phase=\"").append(phase).append("\"} ").append(getCount(phase)).append('\n');
+        }
+
+        for (Counter c : Counter.values()) {
+            name = PREFIX+c+"_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(get(c)).append('\n');
+        }
+
+        gauge(sb, "runs_total", "counter", Integer.toString(runs));
+        gauge(sb, "last_run_timestamp_seconds", "gauge", seconds(lastStart*1000000L));
+        gauge(sb, "last_run_duration_seconds", "gauge", seconds(lastDuration));
+        gauge(sb, "last_run_success", "gauge", lastSuccess ? "1" : "0");
+        return sb.toString();
+    }
+
+    protected static void gauge(StringBuilder sb, String name, String type, String value) {
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return summary of the phases for verbose output
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            long count = getCount(phase);
+            if (count == 0) continue;
+            sb.append(String.format(Locale.ROOT, "%-20s %8d x %10.3f ms (max %.3f ms)%n",
+                    phase, count, getTotalNanos(phase)/1e6, max[phase.ordinal()].get()/1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A phase being timed
+     */
+    public class Span {
+        protected final Phase phase;
+        protected final long start;
+        protected final Object event;
+
+        protected Span(Phase phase) {
+            this.phase = phase;
+            event = EVENTS.begin(phase);
+            start = System.nanoTime();
+        }
+
+        /**
+         * Ends the phase: records its time and commits its event
+         */
+        public void end() {
+            end(null, 0, 0);
+        }
+
+        /**
+         * Ends the phase: records its time and commits its event with the details
+         * @param certID the certificate ID (or keystore ID) processed
+         * @param bytes number of bytes read or written, 0 if not applicable
+         * @param sans number of DNS names in the certificate, 0 if not known
+         */
+        public void end(String certID, long bytes, int sans) {
+            record(phase, start);
+            EVENTS.commit(event, certID, bytes, sans);
+        }
+    }
+
+    /**
+     * @param b bucket index
+     * @return upper bound of the bucket in seconds, or +Inf
+     */
+    protected static String bucketLabel(int b) {
+        return b < BUCKETS.length ? seconds(BUCKETS[b]) : "+Inf";
+    }
+
+    /**
+     * @param nanos time in nanoseconds
+     * @return the time in seconds, without exponent (both JSON and Prometheus accept this)
+     */
+    protected static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
@@ -1,23 +1,49 @@
 package io.r2.wowzaletsencrypt;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 /**
  * MultiFileConcatSource - builds an InputStream from the pre-buffered contents of multiple files
  * This builder class is mutable, it builds into an internal buffer
  *
+ * Files are read with NIO directly into the buffer, which is sized from the file size (large files are
+ * memory mapped and copied in one bulk operation). The contents can be consumed without copying as a ByteBuffer
+ * view or as an InputStream.
+ *
  * Imported from https://github.com/robymus/simple-pem-keystore
  */
 public class MultiFileConcatSource  {
 
-    protected ByteArrayOutputStream contents;
+    /** Files from this size are memory mapped instead of read */
+    protected static final long MAP_THRESHOLD = 1 << 20;
+
+    protected byte[] contents;
+    protected int size;
 
     /**
      * Create an empty builder
      */
     public MultiFileConcatSource() {
-        contents = new ByteArrayOutputStream();
+        contents = new byte[4096];
+    }
+
+    /**
+     * Grows the buffer if needed (keeping contents)
+     * @param capacity the required capacity
+     */
+    protected void ensureCapacity(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE - 8) throw new IOException("Input too large");
+        if (contents.length < capacity) {
+            contents = Arrays.copyOf(contents, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, contents.length*2L)));
+        }
     }
 
     /**
@@ -28,10 +54,17 @@ public class MultiFileConcatSource  {
      * @throws IOException in case of error
      */
     public MultiFileConcatSource add(InputStream is) throws IOException {
-        byte[] buffer = new byte[2048];
-        int read;
-        while ( (read = is.read(buffer)) > 0) {
-            contents.write(buffer, 0, read);
+        while (true) {
+            if (size == contents.length) {
+                // full buffer: grow only if there is more to read
+                int b = is.read();
+                if (b < 0) break;
+                ensureCapacity(size+2048L);
+                contents[size++] = (byte) b;
+            }
+            int read = is.read(contents, size, contents.length-size);
+            if (read < 0) break;
+            size += read;
         }
         return this;
     }
@@ -43,20 +76,47 @@ public class MultiFileConcatSource  {
      * @throws IOException in case of error
      */
     public MultiFileConcatSource add(File file) throws IOException {
-        try (InputStream is = new FileInputStream(file)) {
-            return add(is);
-        }
+        return add(file.toPath());
     }
 
 
     /**
      * Append the contents of a file to this source
+     * The buffer is sized from the file size, the file is read (or mapped) directly into it; the end of the
+     * file is detected with a one byte probe read, so the buffer is not grown when the file fills it exactly
+     *
      * @param fileName the path of the input file
      * @return the object itself for chaining
      * @throws IOException in case of error
      */
     public MultiFileConcatSource add(Path fileName) throws IOException {
-        return add(fileName.toFile());
+        try (FileChannel ch = FileChannel.open(fileName, StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            ensureCapacity(size+fileSize);
+
+            if (fileSize >= MAP_THRESHOLD) {
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                mapped.get(contents, size, (int) fileSize);
+                size += (int) fileSize;
+                ch.position(fileSize);
+            }
+
+            // read until the end (the file may have grown since its size was taken)
+            ByteBuffer probe = ByteBuffer.allocate(1);
+            while (true) {
+                if (size == contents.length) {
+                    // full buffer: grow only if there is more to read, so a file filling it exactly is not copied
+                    probe.clear();
+                    if (ch.read(probe) < 0) break;
+                    ensureCapacity(size+2048L);
+                    contents[size++] = probe.get(0);
+                }
+                int read = ch.read(ByteBuffer.wrap(contents, size, contents.length-size));
+                if (read < 0) break;
+                size += read;
+            }
+        }
+        return this;
     }
 
     /**
@@ -66,9 +126,7 @@ public class MultiFileConcatSource  {
      * @throws IOException in case of error
      */
     public MultiFileConcatSource add(String fileName) throws IOException {
-        try (InputStream is = new FileInputStream(fileName)) {
-            return add(is);
-        }
+        return add(Paths.get(fileName));
     }
 
     /**
@@ -77,16 +135,47 @@ public class MultiFileConcatSource  {
      * @return size of building buffer
      */
     public int size() {
-        return contents.size();
+        return size;
+    }
+
+    /**
+     * Computes the digest of the currently accumulated contents
+     *
+     * @param md the message digest to use
+     * @return the digest value
+     */
+    public byte[] digest(MessageDigest md) {
+        md.update(contents, 0, size);
+        return md.digest();
+    }
+
+    /**
+     * Gets a copy of the currently accumulated contents
+     *
+     * @return the added contents
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(contents, size);
+    }
+
+    /**
+     * Gets the currently accumulated contents as a view of the internal buffer (not copied)
+     * The view is valid until more contents are added
+     *
+     * @return a buffer with the contents between position and limit
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(contents, 0, size);
     }
 
     /**
-     * Builds an input stream from the currently accumulated contents
+     * Builds an input stream from the currently accumulated contents (not copied)
+     * Contents added later are not visible in the stream
      *
      * @return a ByteArrayInputStream created from the added contents
      */
     public ByteArrayInputStream build() {
-        return new ByteArrayInputStream(contents.toByteArray());
+        return new ByteArrayInputStream(contents, 0, size);
     }
 
     /**
@@ -1,28 +1,29 @@
 package io.r2.wowzaletsencrypt;
 
-import java.math.BigInteger;
-import java.util.Base64;
-
 /**
  * PKCS1Converter - helper class to convert PKCS#1 keys (--BEGIN RSA PRIVATE KEY--) to PKCS#8 format
- * Based on the magical code at https://stackoverflow.com/a/33594033
+ *
+ * PKCS#8 (RFC 5208):
+ *      PrivateKeyInfo ::= SEQUENCE { version INTEGER, algorithm SEQUENCE { rsaEncryption, NULL }, privateKey OCTET STRING }
+ * where privateKey is the PKCS#1 RSAPrivateKey. Works for any key length, written into a single buffer.
  *
  * @author robymus <r@r2.io>
  */
 public class PKCS1Converter {
 
     /**
-     * Create a pkcs#8 binary header for a a pkcs#1 binary key
+     * Wrap a PKCS#1 binary key to a PKCS#8 structure
      *
-     * @param innerKey
-     * @return
+     * @param innerKey the PKCS#1 RSAPrivateKey
+     * @return the PKCS#8 PrivateKeyInfo
      */
     public static byte[] toPKCS8(byte[] innerKey) {
-        final byte[] result = new byte[innerKey.length + 26];
-        System.arraycopy(Base64.getDecoder().decode("MIIEvAIBADANBgkqhkiG9w0BAQEFAASCBKY="), 0, result, 0, 26);
-        System.arraycopy(BigInteger.valueOf(result.length - 4).toByteArray(), 0, result, 2, 2);
-        System.arraycopy(BigInteger.valueOf(innerKey.length).toByteArray(), 0, result, 24, 2);
-        System.arraycopy(innerKey, 0, result, 26, innerKey.length);
-        return result;
+        int content = Der.VERSION_0.length + Der.RSA_ALGORITHM.length + Der.length(innerKey.length);
+        return new Der.Writer(Der.length(content))
+                .header(Der.SEQUENCE, content)
+                .write(Der.VERSION_0)
+                .write(Der.RSA_ALGORITHM)
+                .element(Der.OCTET_STRING, innerKey)
+                .toByteArray();
     }
 }
@@ -1,25 +1,21 @@
 package io.r2.wowzaletsencrypt;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.RSAPrivateKeySpec;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * A certificate chain and private key read from PEM
@@ -28,10 +24,21 @@ import java.util.stream.Collectors;
  */
 public class PemCertKey {
 
+    /** Key factories by algorithm, KeyFactory is not guaranteed to be thread safe */
+    protected static final ThreadLocal<HashMap<String, KeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+
     protected Date creationDate;
-    protected Key privateKey;
-    protected List<Certificate> certificateChain;
-    protected Certificate[] certificateChainPacked;
+    /** Named curve OID from an EC PARAMETERS chunk, used for SEC1 keys without parameters */
+    protected byte[] ecParameters;
+    /** The private key in PKCS#8 format, decoded on first use in lazy mode */
+    protected byte[] privateKeyDer;
+    /** Algorithm of the private key (RSA or EC) */
+    protected String privateKeyAlgorithm;
+    protected volatile Key privateKey;
+    /** The certificates of the chain in DER format, decoded on first use in lazy mode */
+    protected List<byte[]> certificateDer;
+    protected volatile Certificate certificate;
+    protected volatile Certificate[] certificateChainPacked;
 
     /**
      * Reads a new certificate chain and key from an input stream
@@ -41,7 +48,7 @@ public class PemCertKey {
      * @param input the input stream
      * @throws IOException in case if input error
      * @throws CertificateException if loading is failed
-     * @throws NoSuchAlgorithmException if algorithms not available (now only RSA is used)
+     * @throws NoSuchAlgorithmException if the key algorithm is not available (RSA or EC)
      */
     public PemCertKey(InputStream input) throws IOException, CertificateException, NoSuchAlgorithmException {
         this(input, new Date());
@@ -56,76 +63,178 @@ public class PemCertKey {
      * @param creationDate the creation date of this entry (for file based certificates, the file modification time)
      * @throws IOException in case if input error
      * @throws CertificateException if loading is failed
-     * @throws NoSuchAlgorithmException if algorithms not available (now only RSA is used)
+     * @throws NoSuchAlgorithmException if the key algorithm is not available (RSA or EC)
      */
     public PemCertKey(InputStream input, Date creationDate) throws IOException, CertificateException, NoSuchAlgorithmException {
         this.creationDate = creationDate;
-        privateKey = null;
-        certificateChain = new ArrayList<>();
-
-        PemStreamParser.parse(input, (type, chunk) -> {
-            switch (type) {
-                case certificate:
-                    addCertificate(chunk);
-                    break;
-                case pkcs8_key:
-                case pkcs1_key:
-                    setPrivateKey(chunk, type);
-                    break;
+        certificateDer = new ArrayList<>();
+
+        PemStreamParser.parseDer(input, this::addChunk);
+
+        decode();
+    }
+
+    /**
+     * Reads a new certificate chain and key from PEM data in memory
+     * CreationDate is set to today
+     *
+     * @param data the PEM data between position and limit
+     * @throws CertificateException if loading is failed
+     * @throws NoSuchAlgorithmException if the key algorithm is not available (RSA or EC)
+     */
+    public PemCertKey(ByteBuffer data) throws CertificateException, NoSuchAlgorithmException {
+        this(data, false);
+    }
+
+    /**
+     * Reads a new certificate chain and key from PEM data in memory
+     * CreationDate is set to today
+     *
+     * In lazy mode only the structure of the key is checked, the private key and the certificates are decoded on the
+     * first call of getPrivateKey, getCertificate and getCertificateChain. This is much cheaper if only the encoded
+     * certificate is needed (eg. for the domain names, see CertificateInfo), as decoding an RSA key is expensive.
+     *
+     * @param data the PEM data between position and limit
+     * @param lazy true to decode the key and the chain on first use
+     * @throws CertificateException if loading is failed
+     * @throws NoSuchAlgorithmException if the key algorithm is not available (RSA or EC)
+     */
+    public PemCertKey(ByteBuffer data, boolean lazy) throws CertificateException, NoSuchAlgorithmException {
+        this.creationDate = new Date();
+        certificateDer = new ArrayList<>();
+
+        PemStreamParser.parseDer(data, this::addChunk);
+
+        if (!lazy) decode();
+    }
+
+    /**
+     * Decodes the private key and the certificate chain
+     */
+    private void decode() throws CertificateException, NoSuchAlgorithmException {
+        if (privateKeyDer != null) {
+            try {
+                privateKey = decodePrivateKey();
             }
-        });
+            catch (InvalidKeySpecException e) {
+                throw new NoSuchAlgorithmException(e);
+            }
+        }
+        if (!certificateDer.isEmpty()) certificate = CertificateCache.decode(certificateDer.get(0));
+        certificateChainPacked = decodeCertificateChain();
+    }
 
-        // put to packed structure
-        certificateChainPacked = certificateChain.toArray(new Certificate[certificateChain.size()]);
+    /**
+     * Internal method used during parsing : processes a decoded chunk
+     *
+     * @param type the chunk type
+     * @param der the decoded chunk
+     */
+    private void addChunk(PemStreamParser.ChunkType type, ByteBuffer der) throws CertificateException, NoSuchAlgorithmException {
+        switch (type) {
+            case certificate:
+                addCertificate(der);
+                break;
+            case pkcs8_key:
+            case pkcs1_key:
+            case ec_key:
+                setPrivateKey(der, type);
+                break;
+            case ec_parameters:
+                ecParameters = new byte[der.remaining()];
+                der.duplicate().get(ecParameters);
+                break;
+        }
     }
 
     /**
-     * Internal method used during parsing : sets the private key in this entry
+     * Internal method used during parsing : sets the private key in this entry (in PKCS#8 format, not decoded)
      *
-     * @param key the chunk containing certificate
-     * @param chunkType pkcs8_key or rsa_key - other values throw NoSuchAlgorithmException
+     * @param der the chunk containing the key in DER format
+     * @param chunkType pkcs8_key, pkcs1_key or ec_key - other values throw NoSuchAlgorithmException
      * @throws CertificateException if key already exists
      */
-    private void setPrivateKey(List<String> key, PemStreamParser.ChunkType chunkType) throws CertificateException, NoSuchAlgorithmException {
-        if (privateKey != null) throw new CertificateException("More than one private key in PEM input");
+    private void setPrivateKey(ByteBuffer der, PemStreamParser.ChunkType chunkType) throws CertificateException, NoSuchAlgorithmException {
+        if (privateKeyDer != null) throw new CertificateException("More than one private key in PEM input");
 
-        String b64key = key.subList(1, key.size()-1).stream().collect(Collectors.joining());
-        byte[] binKey = Base64.getDecoder().decode(b64key);
+        byte[] binKey = new byte[der.remaining()];
+        der.duplicate().get(binKey);
 
-        KeySpec keySpec;
+        byte[] pkcs8;
 
         switch (chunkType) {
             case pkcs8_key:
-                keySpec = new PKCS8EncodedKeySpec(binKey);
+                pkcs8 = binKey;
                 break;
             case pkcs1_key:
-                keySpec = new PKCS8EncodedKeySpec(PKCS1Converter.toPKCS8(binKey));
+                pkcs8 = PKCS1Converter.toPKCS8(binKey);
+                break;
+            case ec_key:
+                pkcs8 = SEC1Converter.toPKCS8(binKey, ecParameters);
                 break;
             default:
                 // this should not happen, as it is called only for matching types
                 throw new NoSuchAlgorithmException("Invalid private key type: "+chunkType);
         }
 
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-        try {
-            privateKey = kf.generatePrivate(keySpec);
-        }
-        catch (InvalidKeySpecException e) {
-            throw new NoSuchAlgorithmException(e);
+        privateKeyAlgorithm = keyAlgorithm(pkcs8);
+        privateKeyDer = pkcs8;
+    }
+
+    /**
+     * Decodes the private key
+     * @return the private key
+     */
+    private Key decodePrivateKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        HashMap<String, KeyFactory> factories = KEY_FACTORIES.get();
+        KeyFactory kf = factories.get(privateKeyAlgorithm);
+        if (kf == null) {
+            kf = KeyFactory.getInstance(privateKeyAlgorithm);
+            factories.put(privateKeyAlgorithm, kf);
         }
+        return kf.generatePrivate(new PKCS8EncodedKeySpec(privateKeyDer));
+    }
 
+    /**
+     * Detects the key algorithm from the AlgorithmIdentifier of a PKCS#8 PrivateKeyInfo
+     * (SEQUENCE { INTEGER version, SEQUENCE { OID algorithm, parameters }, OCTET STRING privateKey })
+     *
+     * @param pkcs8 the PKCS#8 key
+     * @return RSA or EC
+     * @throws CertificateException if the key can't be parsed
+     * @throws NoSuchAlgorithmException for other key algorithms
+     */
+    protected static String keyAlgorithm(byte[] pkcs8) throws CertificateException, NoSuchAlgorithmException {
+        Der.Reader key = new Der.Reader(pkcs8).enter(Der.SEQUENCE);
+        key.skip();
+        Der.Reader algorithm = key.enter(Der.SEQUENCE);
+        if (algorithm.peekEquals(Der.OID, Der.OID_RSA)) return "RSA";
+        if (algorithm.peekEquals(Der.OID, Der.OID_EC_PUBLIC_KEY)) return "EC";
+        throw new NoSuchAlgorithmException("Unsupported private key algorithm");
     }
 
     /**
-     * Add a new certificate to the chain
-     * @param chunk the chunk containing certificate
+     * Add a new certificate to the chain (not decoded yet)
+     * @param der the chunk containing the certificate in DER format
      */
-    private void addCertificate(List<String> chunk) throws CertificateException {
-        InputStream is = new ByteArrayInputStream(
-                chunk.stream().collect(Collectors.joining("\n")).getBytes(StandardCharsets.UTF_8)
-        );
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        certificateChain.add(cf.generateCertificate(is));
+    private void addCertificate(ByteBuffer der) {
+        byte[] bytes = new byte[der.remaining()];
+        der.duplicate().get(bytes);
+        certificateDer.add(bytes);
+    }
+
+    /**
+     * Decodes the certificate chain (reusing the first certificate if already decoded)
+     * The rest of the chain (intermediates) is taken from the shared cache
+     * @return the certificate chain
+     */
+    private Certificate[] decodeCertificateChain() throws CertificateException {
+        Certificate[] chain = new Certificate[certificateDer.size()];
+        for (int i = 0; i < chain.length; i++) {
+            if (i == 0) chain[i] = certificate != null ? certificate : CertificateCache.decode(certificateDer.get(i));
+            else chain[i] = CertificateCache.INTERMEDIATES.get(certificateDer.get(i));
+        }
+        return chain;
     }
 
     /**
@@ -138,48 +247,131 @@ public class PemCertKey {
 
     /**
      * Gets the private key - private keys are not password protected
+     * In lazy mode the key is decoded on the first call (thread safe)
      *
      * @return the private key
-     * @throws UnrecoverableKeyException if password is incorrect
+     * @throws UnrecoverableKeyException if password is incorrect or the key can't be decoded
      */
     public Key getPrivateKey() throws UnrecoverableKeyException {
-        return privateKey;
+        Key key = privateKey;
+        if (key == null && privateKeyDer != null) {
+            synchronized (this) {
+                key = privateKey;
+                if (key == null) {
+                    try {
+                        key = decodePrivateKey();
+                    }
+                    catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                        UnrecoverableKeyException ex = new UnrecoverableKeyException("Can't decode private key: "+e.getMessage());
+                        ex.initCause(e);
+                        throw ex;
+                    }
+                    privateKey = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @return the algorithm of the private key (RSA or EC), without decoding it, or null if there is no key
+     */
+    public String getPrivateKeyAlgorithm() {
+        return privateKeyAlgorithm;
     }
 
     /**
+     * In lazy mode the chain is decoded on the first call (thread safe)
+     *
      * @return certificate chain
+     * @throws IllegalStateException in lazy mode, if the chain can't be decoded
      */
     public Certificate[] getCertificateChain() {
-        return certificateChainPacked;
+        Certificate[] chain = certificateChainPacked;
+        if (chain == null) {
+            synchronized (this) {
+                chain = certificateChainPacked;
+                if (chain == null) {
+                    try {
+                        getCertificate();   // share the first certificate
+                        chain = decodeCertificateChain();
+                    }
+                    catch (CertificateException e) {
+                        throw new IllegalStateException("Can't decode certificate chain: "+e.getMessage(), e);
+                    }
+                    certificateChainPacked = chain;
+                }
+            }
+        }
+        return chain;
     }
 
     /**
+     * In lazy mode the certificate is decoded on the first call (thread safe)
+     *
      * @return the certificate or null if not found in input
+     * @throws IllegalStateException in lazy mode, if the certificate can't be decoded
      */
     public Certificate getCertificate() {
-        return certificateChainPacked.length > 0 ? certificateChainPacked[0] : null;
+        Certificate cert = certificate;
+        if (cert == null && !certificateDer.isEmpty()) {
+            synchronized (this) {
+                cert = certificate;
+                if (cert == null) {
+                    try {
+                        cert = CertificateCache.decode(certificateDer.get(0));
+                    }
+                    catch (CertificateException e) {
+                        throw new IllegalStateException("Can't decode certificate: "+e.getMessage(), e);
+                    }
+                    certificate = cert;
+                }
+            }
+        }
+        return cert;
+    }
+
+    /**
+     * @return the private key in PKCS#8 format (not decoded), or null if not found in input
+     */
+    public byte[] getPrivateKeyEncoded() {
+        return privateKeyDer;
+    }
+
+    /**
+     * @return the certificates of the chain in DER format (not decoded)
+     */
+    public List<byte[]> getCertificateChainEncoded() {
+        return Collections.unmodifiableList(certificateDer);
+    }
+
+    /**
+     * @return the first certificate of the chain in DER format (not decoded), or null if not found in input
+     */
+    public byte[] getCertificateEncoded() {
+        return certificateDer.isEmpty() ? null : certificateDer.get(0);
     }
 
     /**
      * @return true if input has a key
      */
     public boolean hasKey() {
-        return privateKey != null;
+        return privateKeyDer != null;
     }
 
     /**
      * @return true if input has a certificate
      */
     public boolean hasCertificate() {
-        return certificateChainPacked.length > 0;
+        return !certificateDer.isEmpty();
     }
 
     /**
      * @return true if parameter certificate matches this one
      */
     public boolean matchesCertificate(Certificate other) {
-        if (certificateChainPacked.length == 0) return false;
-        return certificateChainPacked[0].equals(other);
+        if (certificateDer.isEmpty()) return false;
+        return getCertificate().equals(other);
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+package io.r2.wowzaletsencrypt;
+
+/**
+ * Events of the conversion phases for an external profiler (Java Flight Recorder)
+ *
+ * The JFR implementation (JfrPhaseEvents) is loaded only if the JVM supports Flight Recorder events
+ * (Java 8u262 and newer, Java 11 and newer), on older JVMs events are not emitted at all.
+ */
+public interface PhaseEvents {
+
+    /** No events */
+    PhaseEvents NONE = new PhaseEvents() {
+        @Override
+        public Object begin(Metrics.Phase phase) {
+            return null;
+        }
+
+        @Override
+        public void commit(Object event, String certID, long bytes, int sans) {
+        }
+    };
+
+    /**
+     * Starts the event of a phase
+     * @param phase the phase
+     * @return the started event, or null if the phase has no event
+     */
+    Object begin(Metrics.Phase phase);
+
+    /**
+     * Ends and commits an event (if it is recorded)
+     * @param event the event returned by begin (null is ignored)
+     * @param certID the certificate ID (or keystore ID) processed
+     * @param bytes number of bytes read or written, 0 if not applicable
+     * @param sans number of DNS names in the certificate, 0 if not known
+     */
+    void commit(Object event, String certID, long bytes, int sans);
+
+    /**
+     * @return the JFR events if supported by the JVM, otherwise NONE
+     */
+    static PhaseEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (PhaseEvents) Class.forName("io.r2.wowzaletsencrypt.JfrPhaseEvents").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return NONE;
+        }
+    }
+}
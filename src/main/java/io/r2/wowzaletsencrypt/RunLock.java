@@ -0,0 +1,182 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Single writer lock of an output directory, with coalescing of the runs requested meanwhile
+ *
+ * Only one process converts into an output directory at a time. A process requesting a run while another one is
+ * in progress (eg. a certbot deploy hook for every certificate renewed in the same batch) only queues its request
+ * in the pending file and exits. The active run takes all queued requests in a single additional pass after its
+ * own, until nothing is pending, so N concurrent requests result in at most two passes instead of N.
+ *
+ * The pending file has one certificate ID per line, or ALL for a full conversion. Requests are queued before
+ * trying the lock again, and the lock is released before checking the pending file for the last time, so a
+ * request is never lost between the end of the active run and the queuing process giving up.
+ */
+public class RunLock implements Closeable {
+
+    /** Name of the lock file in the output directory */
+    public static final String LOCK_FILE = ".converter.lock";
+    /** Name of the file of the queued requests in the output directory */
+    public static final String PENDING_FILE = ".converter.pending";
+    /** Request of a full conversion */
+    public static final String ALL = "*";
+
+    protected final Path lockFile;
+    protected final Path pendingFile;
+    protected FileChannel channel;
+    protected FileLock lock;
+    /** The request of this process, to be taken with the first pass */
+    protected final Set<String> requested = new LinkedHashSet<>();
+
+    /**
+     * @param outputPath the output directory
+     */
+    public RunLock(Path outputPath) {
+        lockFile = outputPath.resolve(LOCK_FILE);
+        pendingFile = outputPath.resolve(PENDING_FILE);
+    }
+
+    /**
+     * Requests a run: acquires the lock if no run is in progress, otherwise queues the request for the active run
+     *
+     * @param lineages certificate IDs to check, null for a full conversion
+     * @return true if the lock is held and the caller has to run the passes returned by next,
+     *         false if the request was queued for the active run
+     * @throws IOException on lock file errors
+     */
+    public boolean request(Set<String> lineages) throws IOException {
+        Set<String> request = lineages == null ? Collections.singleton(ALL) : lineages;
+        if (tryLock()) {
+            requested.addAll(request);
+            return true;
+        }
+        append(request);
+        // the active run may have ended meanwhile, then the request is taken by this process
+        return tryLock();
+    }
+
+    /**
+     * Returns the next pass to run: the own request (first) and all the requests queued meanwhile
+     * Releases the lock when nothing is pending
+     *
+     * @return certificate IDs to check (containing ALL for a full conversion), null if there is nothing more to do
+     * @throws IOException on lock file errors
+     */
+    public Set<String> next() throws IOException {
+        while (lock != null) {
+            Set<String> pass = new LinkedHashSet<>(requested);
+            requested.clear();
+            pass.addAll(take());
+            if (!pass.isEmpty()) return pass;
+
+            // nothing pending: release, then check again (a request may have been queued before releasing)
+            unlock();
+            if (Files.size(pendingFile) > 0) tryLock();
+        }
+        return null;
+    }
+
+    /**
+     * @param pass a pass returned by next
+     * @return the dirty set of the pass for Converter.readCertificates (null to check all)
+     */
+    public static Set<String> dirty(Set<String> pass) {
+        return pass.contains(ALL) ? null : pass;
+    }
+
+    /**
+     * @return true if the lock is held by this process
+     */
+    public boolean isLocked() {
+        return lock != null;
+    }
+
+    /**
+     * Tries to acquire the lock without waiting
+     * @return true if the lock is held
+     */
+    protected boolean tryLock() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        try {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // held by another run in the same JVM
+            lock = null;
+        }
+        return lock != null;
+    }
+
+    protected void unlock() throws IOException {
+        if (lock != null) lock.release();
+        lock = null;
+    }
+
+    /**
+     * Appends a request to the pending file (the pending file is locked only for the update)
+     */
+    protected void append(Set<String> request) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String certID : request) sb.append(certID).append('\n');
+        try (FileChannel pending = FileChannel.open(pendingFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            FileLock l = pending.lock();
+            try {
+                ByteBuffer b = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                while (b.hasRemaining()) pending.write(b);
+            }
+            finally {
+                l.release();
+            }
+        }
+    }
+
+    /**
+     * Takes the queued requests: reads and empties the pending file
+     */
+    protected Set<String> take() throws IOException {
+        Set<String> result = new LinkedHashSet<>();
+        try (FileChannel pending = FileChannel.open(pendingFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileLock l = pending.lock();
+            try {
+                ByteBuffer b = ByteBuffer.allocate((int)pending.size());
+                while (b.hasRemaining() && pending.read(b) >= 0);
+                pending.truncate(0);
+                for (String line : new String(b.array(), 0, b.position(), StandardCharsets.UTF_8).split("\n")) {
+                    if (!line.isEmpty()) result.add(line);
+                }
+            }
+            finally {
+                l.release();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Releases the lock, requests still pending are left for the next run
+     */
+    @Override
+    public void close() throws IOException {
+        unlock();
+        if (channel != null) channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,61 @@
+package io.r2.wowzaletsencrypt;
+
+import java.security.cert.CertificateException;
+
+/**
+ * SEC1Converter - helper class to convert SEC1 EC keys (--BEGIN EC PRIVATE KEY--) to PKCS#8 format
+ *
+ * SEC1 (RFC 5915):
+ *      ECPrivateKey ::= SEQUENCE { version INTEGER, privateKey OCTET STRING, [0] parameters OPTIONAL, [1] publicKey OPTIONAL }
+ * PKCS#8 (RFC 5208):
+ *      PrivateKeyInfo ::= SEQUENCE { version INTEGER, algorithm SEQUENCE { id-ecPublicKey, namedCurve }, privateKey OCTET STRING }
+ */
+public class SEC1Converter {
+
+    /** AlgorithmIdentifier OID of EC keys (the curve follows) */
+    protected static final byte[] EC_ALGORITHM_OID = Der.encode(Der.OID, Der.OID_EC_PUBLIC_KEY);
+
+    /**
+     * Wrap a SEC1 binary key to a PKCS#8 structure
+     *
+     * @param sec1Key the SEC1 ECPrivateKey
+     * @param curveOid the named curve OID (complete DER element), if the key has no parameters,
+     *                 eg. from an EC PARAMETERS chunk - may be null
+     * @return the PKCS#8 PrivateKeyInfo
+     * @throws CertificateException if the key can't be parsed or has no curve
+     */
+    public static byte[] toPKCS8(byte[] sec1Key, byte[] curveOid) throws CertificateException {
+        byte[] curve = curveOid;
+        int curveOffset = 0;
+        int curveLength = curve != null ? curve.length : 0;
+
+        // look for the curve in the [0] parameters of the key (not copied)
+        Der.Reader key = new Der.Reader(sec1Key).enter(Der.SEQUENCE);
+        key.read(Der.INTEGER);
+        key.skip();
+        while (key.hasMore()) {
+            if (key.peekTag() == 0xa0) {
+                Der.Reader params = key.enter(0xa0);
+                curve = sec1Key;
+                curveOffset = params.position();
+                params.skip();
+                curveLength = params.position()-curveOffset;
+            }
+            else {
+                key.skip();
+            }
+        }
+        if (curve == null) throw new CertificateException("EC private key without named curve");
+
+        int algorithm = EC_ALGORITHM_OID.length + curveLength;
+        int content = Der.VERSION_0.length + Der.length(algorithm) + Der.length(sec1Key.length);
+        return new Der.Writer(Der.length(content))
+                .header(Der.SEQUENCE, content)
+                .write(Der.VERSION_0)
+                .header(Der.SEQUENCE, algorithm)
+                .write(EC_ALGORITHM_OID)
+                .write(curve, curveOffset, curveLength)
+                .element(Der.OCTET_STRING, sec1Key)
+                .toByteArray();
+    }
+}
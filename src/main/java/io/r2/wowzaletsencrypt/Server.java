@@ -0,0 +1,398 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server mode - keeps running and converts on requests received on a loopback TCP port
+ *
+ * Hooks (eg. the certbot deploy hook) send a request instead of starting a converter, so they don't pay the JVM
+ * startup, class loading and security provider initialization. The conversions run on a single thread of the
+ * server, which keeps the certificate and key factories and the intermediate certificate cache warm (with more
+ * than one thread set, the worker threads are kept for the lifetime of the server for the same reason). A
+ * conversion failing unexpectedly fails only the requests of its batch, later requests are converted again.
+ * Requests arriving during a conversion are converted together in the next one. The output directory is
+ * locked for every conversion as in a single run, so the server can be used together with other invocations.
+ *
+ * Protocol: the client sends a single command line, the server answers with a single line when the conversion
+ * containing the request is done, then closes the connection
+ *      lineage DIR     - converts a lineage (a certificate ID or a directory in the input directory)
+ *      full            - checks every lineage
+ * Answer: status code (as the exit status of the converter: 0 success, 1 invalid request, 2 read error,
+ * 3 write error, 4 lock or unexpected error) and a message. Status 5 means that another converter process (not a server) was
+ * converting into the output directory, the request is queued for its additional pass and the result is not known,
+ * as when a converter started during another one exits after queuing its request.
+ */
+public class Server {
+
+    /** Timeout of reading the command from a client */
+    protected static final int READ_TIMEOUT_MILLIS = 10000;
+    /** Number of client connections handled at a time, further connections wait for a free handler */
+    protected static final int CLIENT_THREADS = 8;
+    /** Status code of a request queued for the conversion of another process */
+    public static final int QUEUED = 5;
+
+    protected final String inputPath;
+    protected final String outputPath;
+    protected final String password;
+    protected final int port;
+
+    protected boolean verbose = false;
+    protected int threads = 1;
+    protected boolean streaming = false;
+    protected boolean gcDryRun = false;
+    protected KeyStoreFormat format = KeyStoreFormat.jks();
+    protected Generations generations;
+    /** Metrics of all conversions, accumulated */
+    protected Metrics metrics = new Metrics();
+    protected Path reportPath;
+    protected Path prometheusPath;
+
+    protected ServerSocket serverSocket;
+    protected Thread worker;
+    /** Threads handling the client connections */
+    protected ExecutorService clients;
+    /** Worker threads of the conversions (if more than one thread is set), kept for the lifetime of the server */
+    protected ExecutorService workers;
+    /** Requests waiting for the next conversion */
+    protected final List<Request> queue = new ArrayList<>();
+
+    /**
+     * @param inputPath the input directory
+     * @param outputPath the output directory
+     * @param password the keystore password
+     * @param port the port to listen on (on the loopback interface), 0 for any free port
+     */
+    public Server(String inputPath, String outputPath, String password, int port) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.password = password;
+        this.port = port;
+    }
+
+    public void setVerbose(boolean v) {
+        verbose = v;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setFormat(KeyStoreFormat format) {
+        this.format = format;
+    }
+
+    public void setGcDryRun(boolean gcDryRun) {
+        this.gcDryRun = gcDryRun;
+    }
+
+    /**
+     * Sets the generational output layout
+     * @param generations the generations in the output directory, null to update the output directory in place
+     */
+    public void setGenerations(Generations generations) {
+        this.generations = generations;
+    }
+
+    /**
+     * Sets the reports written after every conversion, the metrics accumulate over all conversions
+     * @param reportPath path of the JSON run report, or null
+     * @param prometheusPath path of the Prometheus textfile, or null
+     */
+    public void setReports(Path reportPath, Path prometheusPath) {
+        this.reportPath = reportPath;
+        this.prometheusPath = prometheusPath;
+    }
+
+    /**
+     * Converts everything, then serves requests until closed
+     *
+     * @param incremental incremental mode for the initial conversion
+     * @throws IOException if listening fails
+     */
+    public void run(boolean incremental) throws IOException {
+        bind();
+        submit(new Request(null, incremental));
+        serve();
+    }
+
+    /**
+     * Starts listening on the loopback interface and starts the conversion thread
+     * @throws IOException if listening fails (eg. the port is in use)
+     */
+    public void bind() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        worker = new Thread(this::work, "converter");
+        worker.setDaemon(true);
+        worker.start();
+        clients = Executors.newFixedThreadPool(CLIENT_THREADS, r -> daemon(r, "client"));
+        if (threads > 1) workers = Executors.newFixedThreadPool(threads, r -> daemon(r, "converter-worker"));
+    }
+
+    /**
+     * @return a new daemon thread (the server does not keep the JVM running after the main thread ends)
+     */
+    protected static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * @return the port listened on
+     */
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until closed, the connections are handled on a bounded pool of threads
+     * @throws IOException on accept errors
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (SocketException e) {
+                    if (serverSocket.isClosed()) return;
+                    throw e;
+                }
+                clients.execute(() -> handle(socket));
+            }
+        }
+        finally {
+            worker.interrupt();
+            clients.shutdownNow();
+            if (workers != null) workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops listening and converting (the conversion in progress is finished)
+     * @throws IOException on error
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Reads the command of a client, waits for its conversion and answers
+     * @param socket the client connection
+     */
+    protected void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            String answer = execute(in.readLine());
+            out.write(answer+"\n");
+            out.flush();
+        }
+        catch (IOException e) {
+            if (verbose) System.err.println("Client error: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Executes a command
+     * @param command the command line received
+     * @return the answer: status code and message
+     */
+    protected String execute(String command) {
+        if (command == null) return "1 Missing command";
+        command = command.trim();
+
+        Request request;
+        if (command.equals("full")) {
+            request = new Request(null, true);
+        }
+        else if (command.startsWith("lineage ")) {
+            Path root = Paths.get(inputPath);
+            String certID = Converter.lineageID(root, root.resolve(command.substring("lineage ".length()).trim()));
+            if (certID == null) return "1 Invalid lineage";
+            request = new Request(Collections.singleton(certID), true);
+        }
+        else {
+            return "1 Unknown command";
+        }
+
+        submit(request);
+        try {
+            return request.result.get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            return "4 Server stopped";
+        }
+    }
+
+    /**
+     * Queues a request for the next conversion
+     * @param request the request
+     */
+    protected void submit(Request request) {
+        synchronized (queue) {
+            queue.add(request);
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Conversion thread: converts all the queued requests together, until interrupted
+     */
+    protected void work() {
+        try {
+            while (true) {
+                List<Request> batch;
+                synchronized (queue) {
+                    while (queue.isEmpty()) queue.wait();
+                    batch = new ArrayList<>(queue);
+                    queue.clear();
+                }
+
+                Set<String> dirty = new TreeSet<>();
+                boolean full = false;
+                boolean incremental = true;
+                for (Request r : batch) {
+                    if (r.lineages == null) full = true;
+                    else dirty.addAll(r.lineages);
+                    incremental &= r.incremental;
+                }
+                if (verbose) System.out.println("Requested: "+(full ? "(all)" : String.join(", ", dirty)));
+
+                String result;
+                try {
+                    result = convert(full ? null : dirty, incremental);
+                }
+                catch (RuntimeException e) {
+                    // fail this batch only, keep serving
+                    System.err.println("Conversion error: "+e);
+                    result = "4 Conversion error";
+                }
+                for (Request r : batch) r.result.complete(result);
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped
+        }
+        synchronized (queue) {
+            for (Request r : queue) r.result.complete("4 Server stopped");
+            queue.clear();
+        }
+    }
+
+    /**
+     * Runs a conversion with the output directory locked, with the existing reading and writing logic
+     *
+     * @param dirty certificate IDs to check, null for all
+     * @param incremental incremental mode
+     * @return the answer: status code and message
+     */
+    protected String convert(Set<String> dirty, boolean incremental) {
+        try (RunLock lock = new RunLock(Paths.get(outputPath))) {
+            if (!lock.request(dirty)) return QUEUED+" Queued for the conversion of another process";
+
+            String result = "0 OK";
+            for (Set<String> pass = lock.next(); pass != null; pass = lock.next()) {
+                Converter c = new Converter(inputPath, outputPath);
+                c.setVerbose(verbose);
+                c.setThreads(threads);
+                c.setExecutor(workers);
+                c.setIncremental(incremental);
+                c.setStreaming(streaming);
+                c.setFormat(format);
+                c.setGenerations(generations);
+                c.setGcDryRun(gcDryRun);
+                c.setMetrics(metrics);
+
+                metrics.begin();
+                boolean success = false;
+                if (!c.readCertificates(RunLock.dirty(pass))) {
+                    System.err.println("Error reading certificates, nothing written in this round");
+                    result = "2 Error reading certificates";
+                }
+                else if (!c.writeJKS(password)) {
+                    System.err.println("Error writing output, the domain map is not updated in this round");
+                    result = "3 Error writing output";
+                }
+                else {
+                    success = true;
+                }
+                metrics.end(success);
+            }
+            metrics.writeReports(reportPath, prometheusPath);
+            return result;
+        }
+        catch (IOException e) {
+            System.err.println("Error locking output directory: "+e.getMessage());
+            return "4 Error locking output directory";
+        }
+    }
+
+    /**
+     * Sends a command to a server and waits for the answer
+     *
+     * @param port the port of the server on the loopback interface
+     * @param command the command
+     * @return the answer: status code and message
+     * @throws IOException if the server is not available
+     */
+    public static String send(int port, String command) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            out.write(command+"\n");
+            out.flush();
+            String answer = in.readLine();
+            if (answer == null) throw new EOFException("No answer from the server");
+            return answer;
+        }
+    }
+
+    /**
+     * @param answer an answer of the server
+     * @return its status code
+     */
+    public static int status(String answer) {
+        try {
+            return Integer.parseInt(answer.substring(0, answer.indexOf(' ')));
+        }
+        catch (RuntimeException e) {
+            return 4;
+        }
+    }
+
+    /**
+     * A request waiting for its conversion
+     */
+    protected static class Request {
+        /** certificate IDs to check, null for all */
+        final Set<String> lineages;
+        final boolean incremental;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Request(Set<String> lineages, boolean incremental) {
+            this.lineages = lineages;
+            this.incremental = incremental;
+        }
+    }
+}
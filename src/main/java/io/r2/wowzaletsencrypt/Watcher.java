@@ -0,0 +1,274 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watch mode - keeps running and converts the changed lineages on file system change events
+ *
+ * The input directory and every lineage directory is watched. Bursts of events are collected until
+ * no event arrives for the debounce period, then only the lineages with changed fullchain.pem or privkey.pem
+ * (or new and removed lineages) are converted, and the domain map is written again. The lineages of a failed
+ * conversion are converted again with the next changes, or after the retry period if nothing changes. The output directory is locked for every conversion as
+ * in a single run, so the watcher can be used together with other invocations.
+ */
+public class Watcher {
+
+    protected final String inputPath;
+    protected final String outputPath;
+    protected final String password;
+
+    protected boolean verbose = false;
+    protected int threads = 1;
+    protected boolean streaming = false;
+    protected boolean gcDryRun = false;
+    protected KeyStoreFormat format = KeyStoreFormat.jks();
+    protected Generations generations;
+    protected long debounceMillis = 2000;
+    protected long retryMillis = 60000;
+    /** Metrics of all conversions, accumulated */
+    protected Metrics metrics = new Metrics();
+    protected Path reportPath;
+    protected Path prometheusPath;
+
+    protected Path root;
+    protected WatchService watchService;
+    /** Watch key -> watched directory */
+    protected HashMap<WatchKey, Path> keys;
+    /** Certificate IDs of the failed conversion, checked again in the next round */
+    protected final Set<String> retry = new TreeSet<>();
+    /** The failed conversion was a full one, everything is checked again in the next round */
+    protected boolean retryAll = false;
+
+    public Watcher(String inputPath, String outputPath, String password) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.password = password;
+        root = Paths.get(inputPath);
+        keys = new HashMap<>();
+    }
+
+    public void setVerbose(boolean v) {
+        verbose = v;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setFormat(KeyStoreFormat format) {
+        this.format = format;
+    }
+
+    public void setGcDryRun(boolean gcDryRun) {
+        this.gcDryRun = gcDryRun;
+    }
+
+    /**
+     * Sets the generational output layout
+     * @param generations the generations in the output directory, null to update the output directory in place
+     */
+    public void setGenerations(Generations generations) {
+        this.generations = generations;
+    }
+
+    /**
+     * Sets the reports written after every conversion, the metrics accumulate over all conversions
+     * @param reportPath path of the JSON run report, or null
+     * @param prometheusPath path of the Prometheus textfile, or null
+     */
+    public void setReports(Path reportPath, Path prometheusPath) {
+        this.reportPath = reportPath;
+        this.prometheusPath = prometheusPath;
+    }
+
+    /**
+     * Sets the debounce period: conversion starts when no event arrived for this long
+     * @param debounceMillis debounce period in milliseconds
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Sets the retry period: a failed conversion is retried when no event arrived for this long
+     * @param retryMillis retry period in milliseconds
+     */
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Converts everything, then watches for changes until interrupted
+     * Conversion errors are reported, but do not stop watching
+     *
+     * @param incremental incremental mode for the initial conversion
+     * @throws IOException if watching fails (eg. the input directory is removed)
+     * @throws InterruptedException when the watching thread is interrupted
+     */
+    public void run(boolean incremental) throws IOException, InterruptedException {
+        try (WatchService ws = root.getFileSystem().newWatchService()) {
+            watchService = ws;
+
+            // register first, so changes during the initial conversion are not lost
+            register(root);
+            try (DirectoryStream<Path> dirList = Files.newDirectoryStream(root)) {
+                for (Path dir : dirList) {
+                    if (Files.isDirectory(dir)) register(dir);
+                }
+            }
+
+            convert(null, incremental);
+
+            while (true) {
+                // with a failed conversion pending, wait for changes only until it is retried
+                WatchKey key = retryAll || !retry.isEmpty() ? ws.poll(retryMillis, TimeUnit.MILLISECONDS) : ws.take();
+                Set<String> dirty = new TreeSet<>(retry);
+                boolean full = retryAll;
+
+                // collect events until quiet
+                while (key != null) {
+                    full |= processEvents(key, dirty);
+                    key = ws.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                }
+
+                if (!full && dirty.isEmpty()) continue;
+                if (verbose) System.out.println("Changed: "+(full ? "(all)" : String.join(", ", dirty)));
+                convert(full ? null : dirty, true);
+            }
+        }
+    }
+
+    /**
+     * Registers a directory with the watch service
+     * @param dir the directory to watch
+     * @throws IOException on error
+     */
+    protected void register(Path dir) throws IOException {
+        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+    }
+
+    /**
+     * Processes the events of a signalled key, collects the changed certificate IDs
+     *
+     * @param key the signalled key
+     * @param dirty set of changed certificate IDs to extend
+     * @return true if events were lost and everything must be checked
+     * @throws IOException if the input directory is no longer watchable
+     */
+    protected boolean processEvents(WatchKey key, Set<String> dirty) throws IOException {
+        Path dir = keys.get(key);
+        boolean full = false;
+
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == OVERFLOW || dir == null) {
+                full = true;
+                continue;
+            }
+            Path name = (Path) ev.context();
+
+            if (dir.equals(root)) {
+                // lineage added or removed
+                Path child = root.resolve(name);
+                if (ev.kind() == ENTRY_CREATE && Files.isDirectory(child)) register(child);
+                dirty.add(name.toString());
+            }
+            else {
+                String fn = name.toString();
+                if (fn.equals("fullchain.pem") || fn.equals("privkey.pem")) {
+                    dirty.add(dir.getFileName().toString());
+                }
+            }
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+            if (root.equals(dir)) throw new IOException("Input directory is no longer accessible: "+root);
+        }
+        return full;
+    }
+
+    /**
+     * Runs a conversion with the output directory locked, with the existing reading and writing logic
+     * The lineages of a failed conversion are kept for the next round
+     *
+     * @param dirty certificate IDs to check, null for all
+     * @param incremental incremental mode
+     * @return true if successful (or queued for the conversion of another process)
+     */
+    protected boolean convert(Set<String> dirty, boolean incremental) {
+        retry.clear();
+        retryAll = false;
+
+        try (RunLock lock = new RunLock(Paths.get(outputPath))) {
+            if (!lock.request(dirty)) return true;
+
+            boolean result = true;
+            for (Set<String> pass = lock.next(); pass != null; pass = lock.next()) {
+                Set<String> passDirty = RunLock.dirty(pass);
+                boolean success = convertPass(passDirty, incremental);
+                if (!success) failed(passDirty);
+                result &= success;
+            }
+            metrics.writeReports(reportPath, prometheusPath);
+            return result;
+        }
+        catch (IOException e) {
+            System.err.println("Error locking output directory: "+e.getMessage());
+            failed(dirty);
+            return false;
+        }
+    }
+
+    /**
+     * Runs a single conversion pass (the output directory is locked)
+     *
+     * @param dirty certificate IDs to check, null for all
+     * @param incremental incremental mode
+     * @return true if successful
+     */
+    protected boolean convertPass(Set<String> dirty, boolean incremental) {
+        Converter c = new Converter(inputPath, outputPath);
+        c.setVerbose(verbose);
+        c.setThreads(threads);
+        c.setIncremental(incremental);
+        c.setStreaming(streaming);
+        c.setFormat(format);
+        c.setGenerations(generations);
+        c.setGcDryRun(gcDryRun);
+        c.setMetrics(metrics);
+
+        metrics.begin();
+        boolean success = false;
+        if (!c.readCertificates(dirty)) {
+            System.err.println("Error reading certificates, nothing written in this round");
+        }
+        else if (!c.writeJKS(password)) {
+            System.err.println("Error writing output, the domain map is not updated in this round");
+        }
+        else {
+            success = true;
+        }
+        metrics.end(success);
+        return success;
+    }
+
+    /**
+     * Keeps the lineages of a failed conversion for the next round
+     * @param dirty certificate IDs checked, null for all
+     */
+    protected void failed(Set<String> dirty) {
+        if (dirty == null) retryAll = true;
+        else retry.addAll(dirty);
+    }
+}
@@ -0,0 +1,58 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.Test;
+
+import java.io.FileInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the DER level certificate parser against the JDK
+ */
+public class CertificateInfoTest {
+
+    @Test
+    public void testParse() throws Exception {
+        String[] files = {
+                "src/test/resources/letsencrypt/not-secure.r2.io/fullchain.pem",
+                "src/test/resources/letsencrypt/multi-1.not-secure.r2.io/fullchain.pem",
+                "src/test/resources/acme.sh/not-secure-acme.r2.io/fullchain.pem",
+                "src/test/resources/ecdsa/not-secure-ec.r2.io/fullchain.pem",
+                "src/test/resources/dual/not-secure-dual.r2.io/fullchain.pem"
+        };
+        for (String fn : files) {
+            PemCertKey pem = new PemCertKey(new FileInputStream(fn));
+            X509Certificate x509 = (X509Certificate) pem.getCertificate();
+            CertificateInfo info = CertificateInfo.parse(pem.getCertificateEncoded());
+
+            List<String> dnsNames = x509.getSubjectAlternativeNames().stream()
+                    .filter(ext -> ((Integer) ext.get(0)) == 2)
+                    .map(ext -> (String) ext.get(1))
+                    .collect(Collectors.toList());
+            assertThat(info.getDnsNames()).as(fn).containsExactlyElementsOf(dnsNames);
+            assertThat(info.getNotBefore()).as(fn).isEqualTo(x509.getNotBefore());
+            assertThat(info.getNotAfter()).as(fn).isEqualTo(x509.getNotAfter());
+            assertThat(info.getKeyAlgorithm()).as(fn).isEqualTo(x509.getPublicKey().getAlgorithm());
+        }
+    }
+
+    @Test
+    public void testNoSubjectAltNames() throws Exception {
+        // CA certificate of the chain
+        PemCertKey pem = new PemCertKey(new FileInputStream("src/test/resources/ecdsa/not-secure-ec.r2.io/fullchain.pem"));
+        byte[] ca = ((X509Certificate) pem.getCertificateChain()[1]).getEncoded();
+        assertThat(CertificateInfo.parse(ca).getDnsNames()).isEmpty();
+    }
+
+    @Test(expectedExceptions = CertificateException.class)
+    public void testTruncated() throws Exception {
+        PemCertKey pem = new PemCertKey(new FileInputStream("src/test/resources/pem/cert.pem"));
+        byte[] der = pem.getCertificateEncoded();
+        CertificateInfo.parse(Arrays.copyOf(der, der.length/2));
+    }
+}
@@ -3,17 +3,20 @@ package io.r2.wowzaletsencrypt;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -36,10 +39,7 @@ public class ConverterTest {
     @AfterTest
     public void tearDown() throws Exception {
         // delete temporary out directory recursively
-        Files.walk(outDir)
-                .sorted(Comparator.reverseOrder())
-                .map(Path::toFile)
-                .forEach(File::delete);
+        TestFiles.deleteRecursively(outDir);
     }
 
     private void checkLine(List<String> mapLines, String domain) throws Exception {
@@ -104,6 +104,464 @@ public class ConverterTest {
         checkResultsLetsEncrypt();
     }
 
+    @Test
+    public void testProcessLetsEncryptParallel() throws Exception {
+        Converter seq = new Converter(
+                "src/test/resources/letsencrypt",
+                outDir.toAbsolutePath().toString()
+        );
+        assertThat(seq.readCertificates()).isTrue();
+
+        Converter c = new Converter(
+                "src/test/resources/letsencrypt",
+                outDir.toAbsolutePath().toString()
+        );
+        c.setThreads(4);
+        assertThat(c.readCertificates()).isTrue();
+        // same domain ordering as the sequential read
+        assertThat(c.domains.entrySet()).containsExactlyElementsOf(seq.domains.entrySet());
+        assertThat(c.certificates.keySet()).containsOnlyElementsOf(seq.certificates.keySet());
+
+        assertThat(c.writeJKS()).isTrue();
+        checkResultsLetsEncrypt();
+
+        // no temporary files left
+        try (Stream<Path> files = Files.list(outDir)) {
+            assertThat(files.filter(p -> p.toString().endsWith(".tmp")).count()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testProcessIncremental() throws Exception {
+        Path dir = Files.createTempDirectory("wlincremental");
+        try {
+            Converter c = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.certificates).hasSize(3);
+            assertThat(c.writeJKS()).isTrue();
+            assertThat(dir.resolve(Manifest.FILE_NAME)).isRegularFile();
+
+            // nothing changed: nothing parsed, same domain map
+            Converter c2 = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(c2.readCertificates()).isTrue();
+            assertThat(c2.certificates).isEmpty();
+            assertThat(c2.domains.entrySet()).containsExactlyElementsOf(c.domains.entrySet());
+
+            // missing keystore is converted again
+            Files.delete(dir.resolve("single.not-secure.r2.io.jks"));
+            Converter c3 = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(c3.readCertificates()).isTrue();
+            assertThat(c3.certificates.keySet()).containsExactly("single.not-secure.r2.io");
+            assertThat(c3.writeJKS()).isTrue();
+            assertThat(dir.resolve("single.not-secure.r2.io.jks")).isRegularFile();
+
+            // only the dirty lineage is checked, the others are taken from the manifest
+            Files.delete(dir.resolve("not-secure.r2.io.jks"));
+            Files.delete(dir.resolve("single.not-secure.r2.io.jks"));
+            Converter cd = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(cd.readCertificates(Collections.singleton("single.not-secure.r2.io"))).isTrue();
+            assertThat(cd.certificates.keySet()).containsExactly("single.not-secure.r2.io");
+            assertThat(cd.domains.entrySet()).containsExactlyElementsOf(c.domains.entrySet());
+            assertThat(cd.writeJKS()).isTrue();
+
+            // full check finds the other missing keystore
+            Converter cf = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(cf.readCertificates()).isTrue();
+            assertThat(cf.certificates.keySet()).containsExactly("not-secure.r2.io");
+            assertThat(cf.writeJKS()).isTrue();
+
+            // different password: everything is converted again
+            Converter c4 = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(c4.readCertificates()).isTrue();
+            assertThat(c4.certificates).isEmpty();
+            assertThat(c4.writeJKS("other")).isTrue();
+            assertThat(c4.certificates).hasSize(3);
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testProcessRenewedLineage() throws Exception {
+        Path dir = Files.createTempDirectory("wlrenewed");
+        try {
+            Path in = copyTree(Paths.get("src/test/resources/letsencrypt"), dir.resolve("in"));
+            Path out = Files.createDirectory(dir.resolve("out"));
+
+            Converter c = new Converter(in.toString(), out.toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            byte[] other = Files.readAllBytes(out.resolve("multi-1.not-secure.r2.io.jks"));
+
+            // other lineages are not read at all (this one would fail)
+            Files.write(in.resolve("multi-1.not-secure.r2.io").resolve("fullchain.pem"), "garbage".getBytes(StandardCharsets.US_ASCII));
+            Files.write(in.resolve("not-secure.r2.io").resolve("fullchain.pem"), "\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+            Converter ch = new Converter(in.toString(), out.toString());
+            assertThat(ch.readRenewedLineage(in.resolve("not-secure.r2.io"))).isTrue();
+            assertThat(ch.certificates.keySet()).containsExactly("not-secure.r2.io");
+            assertThat(ch.domains.entrySet()).containsExactlyElementsOf(c.domains.entrySet());
+            assertThat(ch.writeJKS()).isTrue();
+            // only the renewed lineage is converted (the certificate is the same, so it is not published)
+            assertThat(ch.getMetrics().get(Metrics.Counter.lineages_parsed)).isEqualTo(1);
+            assertThat(ch.getMetrics().get(Metrics.Counter.keystores_unchanged)).isEqualTo(1);
+            assertThat(ch.published).isEmpty();
+            assertThat(Files.readAllBytes(out.resolve("multi-1.not-secure.r2.io.jks"))).isEqualTo(other);
+
+            // lineage outside the input directory, or missing
+            Converter ce = new Converter(in.toString(), out.toString());
+            assertThat(ce.readRenewedLineage(Paths.get("src/test/resources/ecdsa/not-secure-ec.r2.io"))).isFalse();
+            assertThat(ce.readRenewedLineage(in.resolve("missing.r2.io"))).isFalse();
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @DataProvider
+    public Object[][] corruptions() {
+        return new Object[][] { { "privkey.pem" }, { "fullchain.pem" } };
+    }
+
+    @Test(dataProvider = "corruptions")
+    public void testCorruptInput(String file) throws Exception {
+        Path dir = Files.createTempDirectory("wlcorrupt");
+        try {
+            Path in = copyTree(Paths.get("src/test/resources/letsencrypt"), dir.resolve("in"));
+            Path out = Files.createDirectory(dir.resolve("out"));
+            Path lineage = in.resolve("not-secure.r2.io");
+
+            if (file.equals("privkey.pem")) {
+                // valid PKCS#8 structure, but the RSA private key in it is garbage
+                byte[] pkcs8 = pemContents(lineage.resolve(file)).get(0);
+                Der.Reader info = new Der.Reader(pkcs8).enter(Der.SEQUENCE);
+                info.skip();
+                info.skip();
+                int keyLength = info.read(Der.OCTET_STRING).length;
+                Arrays.fill(pkcs8, pkcs8.length-keyLength, pkcs8.length, (byte)0x41);
+                writePem(lineage.resolve(file), "PRIVATE KEY", pkcs8);
+            }
+            else {
+                // intermediate certificate with valid outer SEQUENCE, but garbage contents
+                List<byte[]> chain = pemContents(lineage.resolve(file));
+                Arrays.fill(chain.get(1), 4, chain.get(1).length, (byte)0x41);
+                writePem(lineage.resolve(file), "CERTIFICATE", chain.toArray(new byte[0][]));
+            }
+
+            // rejected when read (exit status 2 in main), so nothing is written
+            Converter c = new Converter(in.toString(), out.toString());
+            assertThat(c.readCertificates()).isFalse();
+            try (Stream<Path> files = Files.list(out)) {
+                assertThat(files.count()).isZero();
+            }
+
+            // streaming: the key and the chain are decoded only when writing, nothing is published
+            Converter s = new Converter(in.toString(), out.toString());
+            s.setStreaming(true);
+            assertThat(s.readCertificates()).isTrue();
+            assertThat(s.getMetrics().getCount(Metrics.Phase.key_decode)).isZero();
+            assertThat(s.writeJKS()).isFalse();
+            try (Stream<Path> files = Files.list(out)) {
+                assertThat(files.count()).isZero();
+            }
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    private List<byte[]> pemContents(Path file) throws Exception {
+        String pem = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+        return Arrays.stream(pem.split("-----BEGIN [A-Z ]+-----"))
+                .filter(b -> b.contains("-----END"))
+                .map(b -> Base64.getMimeDecoder().decode(b.substring(0, b.indexOf("-----END"))))
+                .collect(Collectors.toList());
+    }
+
+    private void writePem(Path file, String type, byte[]... contents) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] der : contents) {
+            sb.append("-----BEGIN ").append(type).append("-----\n");
+            sb.append(Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der));
+            sb.append("\n-----END ").append(type).append("-----\n");
+        }
+        Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testStaleKeyStores() throws Exception {
+        Path dir = Files.createTempDirectory("wlstale");
+        try {
+            Path in = copyTree(Paths.get("src/test/resources/letsencrypt"), dir.resolve("in"));
+            Path out = Files.createDirectory(dir.resolve("out"));
+            Files.write(out.resolve("other.jks"), "not written by the converter".getBytes(StandardCharsets.US_ASCII));
+
+            Converter c = new Converter(in.toString(), out.toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            assertThat(Manifest.load(out).getOwned()).containsExactly(
+                    "multi-1.not-secure.r2.io.jks", "not-secure.r2.io.jks", "single.not-secure.r2.io.jks");
+
+            // lineage removed, dry run: reported, but kept and still owned
+            TestFiles.deleteRecursively(in.resolve("single.not-secure.r2.io"));
+            Converter cd = new Converter(in.toString(), out.toString());
+            cd.setGcDryRun(true);
+            assertThat(cd.readCertificates()).isTrue();
+            assertThat(cd.writeJKS()).isTrue();
+            assertThat(cd.deleted).isEmpty();
+            assertThat(out.resolve("single.not-secure.r2.io.jks")).isRegularFile();
+            assertThat(Manifest.load(out).getOwned()).contains("single.not-secure.r2.io.jks");
+
+            // deleted by the next run, other files are kept
+            Converter c2 = new Converter(in.toString(), out.toString());
+            assertThat(c2.readCertificates()).isTrue();
+            assertThat(c2.writeJKS()).isTrue();
+            assertThat(c2.deleted).containsExactly("single.not-secure.r2.io.jks");
+            assertThat(c2.getMetrics().get(Metrics.Counter.keystores_deleted)).isEqualTo(1);
+            assertThat(out.resolve("single.not-secure.r2.io.jks")).doesNotExist();
+            assertThat(out.resolve("other.jks")).isRegularFile();
+            assertThat(Manifest.load(out).getOwned()).containsExactly("multi-1.not-secure.r2.io.jks", "not-secure.r2.io.jks");
+
+            // format changed: the keystores in the previous format are deleted
+            Converter c3 = new Converter(in.toString(), out.toString());
+            c3.setFormat(KeyStoreFormat.pkcs12());
+            assertThat(c3.readCertificates()).isTrue();
+            assertThat(c3.writeJKS()).isTrue();
+            assertThat(c3.deleted).containsExactly("multi-1.not-secure.r2.io.jks", "not-secure.r2.io.jks");
+            try (Stream<Path> files = Files.list(out)) {
+                assertThat(files.map(p -> p.getFileName().toString())).containsOnly(
+                        "multi-1.not-secure.r2.io.p12", "not-secure.r2.io.p12", "other.jks", "jksmap.txt", Manifest.FILE_NAME);
+            }
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testProcessUnchangedOutput() throws Exception {
+        Path dir = Files.createTempDirectory("wlunchanged");
+        try {
+            Converter c = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            assertThat(c.published).contains("jksmap.txt", "not-secure.r2.io.jks");
+
+            Path jks = dir.resolve("not-secure.r2.io.jks");
+            FileTime jksTime = FileTime.fromMillis(1000000000000L);
+            Files.setLastModifiedTime(jks, jksTime);
+            Files.setLastModifiedTime(dir.resolve("jksmap.txt"), jksTime);
+
+            // full conversion of the same input: nothing is published
+            Converter c2 = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            c2.setIncremental(false);
+            assertThat(c2.readCertificates()).isTrue();
+            assertThat(c2.certificates).hasSize(3);
+            assertThat(c2.writeJKS()).isTrue();
+            assertThat(c2.published).isEmpty();
+            assertThat(Files.getLastModifiedTime(jks)).isEqualTo(jksTime);
+            assertThat(Files.getLastModifiedTime(dir.resolve("jksmap.txt"))).isEqualTo(jksTime);
+
+            // other password: keystores and map are published again
+            Converter c3 = new Converter("src/test/resources/letsencrypt", dir.toAbsolutePath().toString());
+            c3.setIncremental(false);
+            assertThat(c3.readCertificates()).isTrue();
+            assertThat(c3.writeJKS("other")).isTrue();
+            assertThat(c3.published).hasSize(4);
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testProcessPKCS12() throws Exception {
+        Path dir = Files.createTempDirectory("wlpkcs12");
+        try {
+            Converter c = new Converter("src/test/resources/acme.sh", dir.toAbsolutePath().toString());
+            c.setFormat(KeyStoreFormat.pkcs12().set("macIterationCount", "2048"));
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+
+            List<String> mapLines = Files.lines(dir.resolve("jksmap.txt")).collect(Collectors.toList());
+            assertThat(mapLines).hasSize(1);
+            String json = mapLines.get(0).substring("not-secure-acme.r2.io=".length());
+            JsonData data = new ObjectMapper().readValue(json, JsonData.class);
+            assertThat(data.keyStoreType).isEqualTo("PKCS12");
+            assertThat(data.keyStorePath).endsWith("not-secure-acme.r2.io.p12");
+
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            try (FileInputStream in = new FileInputStream(data.keyStorePath)) {
+                ks.load(in, "secret".toCharArray());
+            }
+            assertThat(ks.getCertificate("server")).isInstanceOf(X509Certificate.class);
+            assertThat(ks.getKey("server", "secret".toCharArray())).isNotNull();
+
+            // format change is detected by the incremental conversion
+            Converter c2 = new Converter("src/test/resources/acme.sh", dir.toAbsolutePath().toString());
+            assertThat(c2.readCertificates()).isTrue();
+            assertThat(c2.writeJKS()).isTrue();
+            assertThat(c2.published).contains("not-secure-acme.r2.io.jks", "jksmap.txt");
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testProcessECDSA() throws Exception {
+        Path dir = Files.createTempDirectory("wlecdsa");
+        try {
+            Converter c = new Converter("src/test/resources/ecdsa", dir.toAbsolutePath().toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            assertThat(c.domains).containsOnlyKeys("not-secure-ec.r2.io", "www.not-secure-ec.r2.io");
+
+            KeyStore ks = KeyStore.getInstance("JKS");
+            try (FileInputStream in = new FileInputStream(dir.resolve("not-secure-ec.r2.io.jks").toFile())) {
+                ks.load(in, "secret".toCharArray());
+            }
+            assertThat(ks.getKey("server", "secret".toCharArray()).getAlgorithm()).isEqualTo("EC");
+            assertThat(ks.getCertificateChain("server")).hasSize(2);
+            assertThat(ks.getCertificate("server").getPublicKey().getAlgorithm()).isEqualTo("EC");
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testProcessStreaming() throws Exception {
+        Path dir = Files.createTempDirectory("wlstreaming");
+        try {
+            Path in = copyTree(Paths.get("src/test/resources/letsencrypt"), dir.resolve("in"));
+            Path out = Files.createDirectory(dir.resolve("out"));
+
+            Converter c = new Converter(in.toString(), out.toString());
+            c.setStreaming(true);
+            c.setThreads(2);
+            assertThat(c.readCertificates()).isTrue();
+            // checked, but not kept in memory
+            assertThat(c.certificates).hasSize(3).containsValues((PemCertKey) null);
+            assertThat(c.writeJKS()).isTrue();
+            // every key is decoded once, when its keystore is written
+            assertThat(c.getMetrics().getCount(Metrics.Phase.key_decode)).isEqualTo(3);
+
+            Converter ref = new Converter(in.toString(), dir.toString());
+            ref.setIncremental(false);
+            assertThat(ref.readCertificates()).isTrue();
+            assertThat(c.domains.entrySet()).containsExactlyElementsOf(ref.domains.entrySet());
+
+            KeyStore ks = KeyStore.getInstance("JKS");
+            try (FileInputStream is = new FileInputStream(out.resolve("not-secure.r2.io.jks").toFile())) {
+                ks.load(is, "secret".toCharArray());
+            }
+            assertThat(ks.getKey("server", "secret".toCharArray())).isNotNull();
+            assertThat(ks.getCertificateChain("server")).containsExactly(ref.certificates.get("not-secure.r2.io").getCertificateChain());
+
+            // input changed between reading and writing: nothing is published
+            Files.delete(out.resolve("not-secure.r2.io.jks"));
+            byte[] map = Files.readAllBytes(out.resolve("jksmap.txt"));
+            Converter c2 = new Converter(in.toString(), out.toString());
+            c2.setStreaming(true);
+            assertThat(c2.readCertificates()).isTrue();
+            Files.write(in.resolve("not-secure.r2.io").resolve("fullchain.pem"), "\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            assertThat(c2.writeJKS()).isFalse();
+            assertThat(out.resolve("not-secure.r2.io.jks")).doesNotExist();
+            assertThat(out.resolve("not-secure.r2.io.jks.tmp")).doesNotExist();
+            assertThat(Files.readAllBytes(out.resolve("jksmap.txt"))).isEqualTo(map);
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    private Path copyTree(Path source, Path target) throws Exception {
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path p : files.collect(Collectors.toList())) {
+                Files.copy(p, target.resolve(source.relativize(p).toString()));
+            }
+        }
+        return target;
+    }
+
+    @Test
+    public void testPairNewest() throws Exception {
+        Converter c = new Converter("in", "out");
+        // stale RSA lineage, its renewed duplicate and the ECDSA lineage of the same domains
+        String[][] lineages = {
+                { "example.com", "RSA", "1000" },
+                { "example.com-0001", "RSA", "2000" },
+                { "example.com-ecdsa", "EC", "2000" },
+        };
+        for (String[] l : lineages) {
+            Manifest.Entry e = new Manifest.Entry(l[0]);
+            e.keyAlgorithm = l[1];
+            e.notAfter = Long.parseLong(l[2]);
+            e.domains = Arrays.asList("example.com", "www.example.com");
+            c.manifest.put(e);
+        }
+        c.pairLineages();
+        assertThat(c.keyStores).containsOnlyKeys("example.com", "example.com-0001");
+        assertThat(c.keyStores.get("example.com-0001")).containsExactly("example.com-0001", "example.com-ecdsa");
+        assertThat(c.domains).containsEntry("example.com", "example.com-0001");
+    }
+
+    @Test
+    public void testProcessDual() throws Exception {
+        Path dir = Files.createTempDirectory("wldual");
+        try {
+            Path in = Files.createDirectory(dir.resolve("in"));
+            Path out = Files.createDirectory(dir.resolve("out"));
+            for (String certID : new String[] { "not-secure-dual.r2.io", "not-secure-dual.r2.io-ecdsa" }) {
+                Files.createDirectory(in.resolve(certID));
+                for (String fn : new String[] { "fullchain.pem", "privkey.pem" }) {
+                    Files.copy(Paths.get("src/test/resources/dual", certID, fn), in.resolve(certID).resolve(fn));
+                }
+            }
+
+            // RSA and ECDSA lineage of the same domains in one keystore
+            Converter c = new Converter(in.toString(), out.toString());
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            assertThat(c.keyStores).containsOnlyKeys("not-secure-dual.r2.io");
+            assertThat(c.domains).containsEntry("not-secure-dual.r2.io", "not-secure-dual.r2.io")
+                    .containsEntry("www.not-secure-dual.r2.io", "not-secure-dual.r2.io");
+            assertThat(out.resolve("not-secure-dual.r2.io-ecdsa.jks")).doesNotExist();
+
+            KeyStore ks = KeyStore.getInstance("JKS");
+            try (FileInputStream is = new FileInputStream(out.resolve("not-secure-dual.r2.io.jks").toFile())) {
+                ks.load(is, "secret".toCharArray());
+            }
+            assertThat(ks.size()).isEqualTo(2);
+            assertThat(ks.getKey(Converter.ALIAS, "secret".toCharArray()).getAlgorithm()).isEqualTo("RSA");
+            assertThat(ks.getKey(Converter.ECDSA_ALIAS, "secret".toCharArray()).getAlgorithm()).isEqualTo("EC");
+
+            // unchanged: nothing parsed
+            Converter c2 = new Converter(in.toString(), out.toString());
+            assertThat(c2.readCertificates()).isTrue();
+            assertThat(c2.certificates).isEmpty();
+            assertThat(c2.writeJKS()).isTrue();
+            assertThat(c2.published).isEmpty();
+
+            // ECDSA lineage removed: the keystore is written again with the RSA entry only
+            TestFiles.deleteRecursively(in.resolve("not-secure-dual.r2.io-ecdsa"));
+            Converter c3 = new Converter(in.toString(), out.toString());
+            assertThat(c3.readCertificates()).isTrue();
+            assertThat(c3.writeJKS()).isTrue();
+            assertThat(c3.published).contains("not-secure-dual.r2.io.jks");
+            try (FileInputStream is = new FileInputStream(out.resolve("not-secure-dual.r2.io.jks").toFile())) {
+                ks.load(is, "secret".toCharArray());
+            }
+            assertThat(ks.size()).isEqualTo(1);
+            assertThat(ks.isKeyEntry(Converter.ALIAS)).isTrue();
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
     private void checkResultsAcme() throws Exception {
         // test map
         Path map = outDir.resolve("jksmap.txt");
@@ -0,0 +1,234 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Generates a synthetic fleet of certificate lineages for scale testing
+ *
+ * Creates a self-signed root, a few intermediates shared by all lineages and a leaf certificate for every
+ * lineage with a configurable number of DNS names, in the letsencrypt layout:
+ *      live/&lt;certID&gt;/fullchain.pem (leaf + intermediate) and live/&lt;certID&gt;/privkey.pem
+ * Private keys alternate between PKCS#8 and PKCS#1 format. RSA key generation is slow, so leaf keys are taken
+ * from a pool of pre-generated keys. Everything is generated offline, with a minimal DER encoder.
+ */
+public class FleetGenerator {
+
+    protected int lineages = 100;
+    protected int sans = 3;
+    protected int intermediates = 2;
+    protected int keyPoolSize = 8;
+    protected int keySize = 2048;
+    protected long seed = 1;
+
+    protected static final byte[] OID_SHA256_RSA = oid("1.2.840.113549.1.1.11");
+    protected static final byte[] OID_CN = oid("2.5.4.3");
+    protected static final byte[] OID_SAN = oid("2.5.29.17");
+    protected static final byte[] OID_BASIC_CONSTRAINTS = oid("2.5.29.19");
+
+    public FleetGenerator lineages(int n) { lineages = n; return this; }
+    public FleetGenerator sans(int n) { sans = n; return this; }
+    public FleetGenerator intermediates(int n) { intermediates = n; return this; }
+    public FleetGenerator keyPoolSize(int n) { keyPoolSize = n; return this; }
+    public FleetGenerator keySize(int n) { keySize = n; return this; }
+    public FleetGenerator seed(long s) { seed = s; return this; }
+
+    /**
+     * @param lineage index of the lineage
+     * @return the certificate ID (directory name) of the lineage
+     */
+    public static String certID(int lineage) {
+        return String.format("fleet-%05d.test", lineage);
+    }
+
+    /**
+     * @param lineage index of the lineage
+     * @param san index of the DNS name in the lineage
+     * @return the DNS name
+     */
+    public static String domain(int lineage, int san) {
+        return san == 0 ? certID(lineage) : String.format("san-%d.%s", san, certID(lineage));
+    }
+
+    /**
+     * Generates the fleet
+     *
+     * @param root base directory, lineages are created in root/live
+     * @return the live directory
+     */
+    public Path generate(Path root) throws IOException, GeneralSecurityException {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(seed);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(keySize, random);
+
+        Date notBefore = new Date(System.currentTimeMillis() - 86400000L);
+        Date notAfter = new Date(System.currentTimeMillis() + 90*86400000L);
+
+        // root and shared intermediates
+        KeyPair rootKey = kpg.generateKeyPair();
+        KeyPair[] interKeys = new KeyPair[intermediates];
+        byte[][] interCerts = new byte[intermediates][];
+        for (int i = 0; i < intermediates; i++) {
+            interKeys[i] = kpg.generateKeyPair();
+            interCerts[i] = certificate(BigInteger.valueOf(100+i), "Fleet Root", "Fleet Intermediate "+i,
+                    notBefore, notAfter, interKeys[i].getPublic(), rootKey.getPrivate(), true, null);
+        }
+
+        KeyPair[] keyPool = new KeyPair[keyPoolSize];
+        for (int i = 0; i < keyPoolSize; i++) keyPool[i] = kpg.generateKeyPair();
+
+        Path live = root.resolve("live");
+        Files.createDirectories(live);
+        for (int l = 0; l < lineages; l++) {
+            int inter = l % intermediates;
+            KeyPair key = keyPool[l % keyPoolSize];
+
+            List<String> names = new ArrayList<>();
+            for (int s = 0; s < sans; s++) names.add(domain(l, s));
+
+            byte[] leaf = certificate(BigInteger.valueOf(1000+l), "Fleet Intermediate "+inter, certID(l),
+                    notBefore, notAfter, key.getPublic(), interKeys[inter].getPrivate(), false, names);
+
+            Path dir = live.resolve(certID(l));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("fullchain.pem"),
+                    (pem("CERTIFICATE", leaf) + pem("CERTIFICATE", interCerts[inter])).getBytes(StandardCharsets.US_ASCII));
+
+            byte[] pkcs8 = key.getPrivate().getEncoded();
+            String keyPem = (l % 2 == 0) ? pem("PRIVATE KEY", pkcs8) : pem("RSA PRIVATE KEY", pkcs1(pkcs8));
+            Files.write(dir.resolve("privkey.pem"), keyPem.getBytes(StandardCharsets.US_ASCII));
+        }
+        return live;
+    }
+
+    /**
+     * Creates a signed X.509 v3 certificate
+     */
+    protected static byte[] certificate(BigInteger serial, String issuer, String subject, Date notBefore, Date notAfter,
+                                        PublicKey publicKey, PrivateKey signer, boolean ca, List<String> dnsNames)
+            throws GeneralSecurityException {
+        byte[] algId = seq(OID_SHA256_RSA, tlv(0x05, new byte[0]));
+
+        List<byte[]> extensions = new ArrayList<>();
+        if (ca) {
+            extensions.add(seq(OID_BASIC_CONSTRAINTS, tlv(0x01, new byte[] { (byte)0xff }),
+                    tlv(0x04, seq(tlv(0x01, new byte[] { (byte)0xff })))));
+        }
+        if (dnsNames != null) {
+            List<byte[]> names = new ArrayList<>();
+            for (String n : dnsNames) names.add(tlv(0x82, n.getBytes(StandardCharsets.US_ASCII)));
+            extensions.add(seq(OID_SAN, tlv(0x04, seq(names.toArray(new byte[0][])))));
+        }
+
+        byte[] tbs = seq(
+                tlv(0xa0, tlv(0x02, new byte[] { 2 })),
+                tlv(0x02, serial.toByteArray()),
+                algId,
+                name(issuer),
+                seq(time(notBefore), time(notAfter)),
+                name(subject),
+                publicKey.getEncoded(),
+                tlv(0xa3, seq(extensions.toArray(new byte[0][])))
+        );
+
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(signer);
+        sig.update(tbs);
+        byte[] signature = sig.sign();
+        byte[] bitString = new byte[signature.length+1];
+        System.arraycopy(signature, 0, bitString, 1, signature.length);
+
+        return seq(tbs, algId, tlv(0x03, bitString));
+    }
+
+    /**
+     * Extracts the PKCS#1 RSAPrivateKey from a PKCS#8 PrivateKeyInfo
+     * (SEQUENCE { INTEGER version, SEQUENCE algorithm, OCTET STRING privateKey })
+     */
+    protected static byte[] pkcs1(byte[] pkcs8) {
+        int[] pos = { 0 };
+        readHeader(pkcs8, pos);       // outer sequence
+        skip(pkcs8, pos);             // version
+        skip(pkcs8, pos);             // algorithm
+        int len = readHeader(pkcs8, pos);
+        return Arrays.copyOfRange(pkcs8, pos[0], pos[0]+len);
+    }
+
+    /** Reads a tag and length, returns the length, pos points to the content */
+    protected static int readHeader(byte[] der, int[] pos) {
+        pos[0]++; // tag
+        int len = der[pos[0]++] & 0xff;
+        if (len > 0x80) {
+            int n = len & 0x7f;
+            len = 0;
+            for (int i = 0; i < n; i++) len = (len << 8) | (der[pos[0]++] & 0xff);
+        }
+        return len;
+    }
+
+    /** Skips a whole TLV */
+    protected static void skip(byte[] der, int[] pos) {
+        int len = readHeader(der, pos);
+        pos[0] += len;
+    }
+
+    protected static byte[] name(String cn) {
+        return seq(tlv(0x31, seq(OID_CN, tlv(0x0c, cn.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    protected static byte[] time(Date d) {
+        SimpleDateFormat f = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return tlv(0x17, f.format(d).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    protected static byte[] oid(String dotted) {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0])*40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long v = Long.parseLong(parts[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(v|1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7) out.write((int)((v >> shift) & 0x7f) | 0x80);
+            out.write((int)(v & 0x7f));
+        }
+        return tlv(0x06, out.toByteArray());
+    }
+
+    protected static byte[] seq(byte[]... items) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] i : items) out.write(i, 0, i.length);
+        return tlv(0x30, out.toByteArray());
+    }
+
+    protected static byte[] tlv(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length+6);
+        out.write(tag);
+        int len = content.length;
+        if (len < 0x80) {
+            out.write(len);
+        }
+        else {
+            int n = len > 0xffffff ? 4 : len > 0xffff ? 3 : len > 0xff ? 2 : 1;
+            out.write(0x80 | n);
+            for (int i = n-1; i >= 0; i--) out.write(len >> (8*i));
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    protected static String pem(String type, byte[] der) {
+        return "-----BEGIN "+type+"-----\n" +
+                Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der) +
+                "\n-----END "+type+"-----\n";
+    }
+}
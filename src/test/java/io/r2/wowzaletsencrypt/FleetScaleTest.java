@@ -0,0 +1,117 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * End to end scale test on a generated fleet
+ * Prints the read and write times, the time spent in every phase (parse, decode, encode, write, publish)
+ * and the heap usage.
+ *
+ * The fleet size is small by default, to keep the test suite fast. Larger runs can be configured with
+ * system properties: fleet.lineages, fleet.sans, fleet.threads, fleet.keySize, fleet.streaming
+ */
+public class FleetScaleTest {
+
+    int lineages = Integer.getInteger("fleet.lineages", 50);
+    int sans = Integer.getInteger("fleet.sans", 3);
+    int threads = Integer.getInteger("fleet.threads", 1);
+    int keySize = Integer.getInteger("fleet.keySize", 1024);
+    boolean streaming = Boolean.getBoolean("fleet.streaming");
+
+    Path baseDir;
+    Path live;
+    Path outDir;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        baseDir = Files.createTempDirectory("wlfleet");
+        outDir = Files.createDirectory(baseDir.resolve("out"));
+
+        long start = System.nanoTime();
+        live = new FleetGenerator()
+                .lineages(lineages)
+                .sans(sans)
+                .keySize(keySize)
+                .generate(baseDir);
+        System.out.printf("Fleet generated: %d lineages, %d SANs each in %d ms%n",
+                lineages, sans, (System.nanoTime()-start)/1000000);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        TestFiles.deleteRecursively(baseDir);
+    }
+
+    @Test
+    public void testFleet() throws Exception {
+        System.gc();
+        resetPeakHeap();
+
+        Converter c = new Converter(live.toString(), outDir.toString());
+        c.setThreads(threads);
+        c.setStreaming(streaming);
+
+        long start = System.nanoTime();
+        assertThat(c.readCertificates()).isTrue();
+        long read = System.nanoTime()-start;
+
+        // heap retained between reading and writing (grows with the fleet, unless streaming)
+        long retained = usedHeapAfterGc();
+
+        start = System.nanoTime();
+        assertThat(c.writeJKS()).isTrue();
+        long write = System.nanoTime()-start;
+
+        System.out.printf("Fleet conversion: %d lineages, %d threads%s: read %d ms, write %d ms, total %d ms, retained heap %d MB, peak heap %d MB%n",
+                lineages, threads, streaming ? ", streaming" : "",
+                read/1000000, write/1000000, (read+write)/1000000,
+                retained >> 20, peakHeap() >> 20);
+        System.out.print(c.getMetrics().summary());
+        System.out.printf("Intermediate certificate cache: %d hits, %d misses%n",
+                CertificateCache.INTERMEDIATES.getHits(), CertificateCache.INTERMEDIATES.getMisses());
+
+        assertThat(c.certificates).hasSize(lineages);
+        assertThat(c.getMetrics().getCount(Metrics.Phase.parse)).isEqualTo(lineages);
+        assertThat(c.getMetrics().getCount(Metrics.Phase.key_decode)).isEqualTo(lineages);
+        assertThat(c.getMetrics().getCount(Metrics.Phase.encode)).isEqualTo(lineages);
+        assertThat(c.domains).hasSize(lineages*sans);
+        assertThat(c.domains.get(FleetGenerator.domain(lineages-1, sans-1))).isEqualTo(FleetGenerator.certID(lineages-1));
+        try (Stream<Path> files = Files.list(outDir)) {
+            assertThat(files.filter(p -> p.toString().endsWith(".jks")).count()).isEqualTo(lineages);
+        }
+    }
+
+    private void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private long usedHeapAfterGc() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
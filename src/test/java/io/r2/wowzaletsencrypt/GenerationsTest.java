@@ -0,0 +1,145 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the generational output layout
+ */
+public class GenerationsTest {
+
+    Path dir;
+    Path in;
+    Path out;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("wlgenerations");
+        in = Files.createDirectory(dir.resolve("in"));
+        out = Files.createDirectory(dir.resolve("out"));
+        Path source = Paths.get("src/test/resources/letsencrypt");
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path p : files.filter(p -> !p.equals(source)).collect(Collectors.toList())) {
+                Files.copy(p, in.resolve(source.relativize(p).toString()));
+            }
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        TestFiles.deleteRecursively(dir);
+    }
+
+    protected Converter convert(Generations generations, String password) {
+        Converter c = new Converter(in.toString(), out.toString());
+        c.setGenerations(generations);
+        assertThat(c.readCertificates()).isTrue();
+        assertThat(c.writeJKS(password)).isTrue();
+        return c;
+    }
+
+    protected List<String> list() throws Exception {
+        try (Stream<Path> files = Files.list(out)) {
+            return files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testConvert() throws Exception {
+        Generations g = new Generations(out, 2);
+        convert(g, "secret");
+        assertThat(list()).containsExactly("current", "gen-1");
+        assertThat(Files.readSymbolicLink(out.resolve(Generations.CURRENT))).isEqualTo(Paths.get("gen-1"));
+        // the map refers to the keystores of its own generation
+        assertThat(new String(Files.readAllBytes(out.resolve("current/jksmap.txt"))))
+                .contains(out.resolve("gen-1").resolve("not-secure.r2.io.jks").toAbsolutePath().toString());
+
+        // nothing changed: no new generation
+        Converter c = convert(g, "secret");
+        assertThat(c.published).isEmpty();
+        assertThat(list()).containsExactly("current", "gen-1");
+
+        // input changed, but the same certificate: the new generation is discarded
+        Files.write(in.resolve("not-secure.r2.io/fullchain.pem"), "\n".getBytes(), StandardOpenOption.APPEND);
+        c = convert(g, "secret");
+        assertThat(c.certificates).containsOnlyKeys("not-secure.r2.io");
+        assertThat(c.published).isEmpty();
+        assertThat(list()).containsExactly("current", "gen-1");
+        // its new fingerprint is recorded: not parsed again
+        c = convert(g, "secret");
+        assertThat(c.certificates).isEmpty();
+
+        // lineage removed: new map, unchanged keystores are linked
+        TestFiles.deleteRecursively(in.resolve("single.not-secure.r2.io"));
+        c = convert(g, "secret");
+        assertThat(c.published).containsExactly("jksmap.txt");
+        assertThat(list()).containsExactly("current", "gen-1", "gen-2");
+        assertThat(Files.readSymbolicLink(out.resolve(Generations.CURRENT))).isEqualTo(Paths.get("gen-2"));
+        assertThat(Files.isSameFile(out.resolve("gen-1/not-secure.r2.io.jks"), out.resolve("gen-2/not-secure.r2.io.jks"))).isTrue();
+        assertThat(Files.readAllLines(out.resolve("current/jksmap.txt"))).hasSize(5);
+        // the stale keystore is deleted from the new generation only
+        assertThat(out.resolve("gen-2/single.not-secure.r2.io.jks")).doesNotExist();
+        assertThat(out.resolve("gen-1/single.not-secure.r2.io.jks")).isRegularFile();
+
+        // keystores rewritten: old generations beyond the retention are deleted
+        c = convert(g, "other");
+        assertThat(c.published).contains("not-secure.r2.io.jks", "jksmap.txt");
+        assertThat(list()).containsExactly("current", "gen-2", "gen-3");
+        assertThat(Files.isSameFile(out.resolve("gen-2/not-secure.r2.io.jks"), out.resolve("gen-3/not-secure.r2.io.jks"))).isFalse();
+    }
+
+    @Test
+    public void testSwitchFromFlat() throws Exception {
+        convert(null, "secret");
+        assertThat(out.resolve("jksmap.txt")).isRegularFile();
+
+        // the flat output is the previous generation: nothing is parsed again
+        Converter c = convert(new Generations(out, 2), "secret");
+        assertThat(c.certificates).isEmpty();
+        assertThat(c.published).containsExactly("jksmap.txt");
+        assertThat(Files.isSameFile(out.resolve("not-secure.r2.io.jks"), out.resolve("current/not-secure.r2.io.jks"))).isTrue();
+    }
+
+    @Test
+    public void testCollectFailureKeepsPublished() throws Exception {
+        Generations g = new Generations(out, 2) {
+            @Override
+            public List<Path> collect() throws IOException {
+                throw new IOException("test");
+            }
+        };
+        Converter c = convert(g, "secret");
+        assertThat(c.published).contains("jksmap.txt");
+        assertThat(list()).containsExactly("current", "gen-1");
+        assertThat(out.resolve("current/jksmap.txt")).isRegularFile();
+    }
+
+    @Test
+    public void testCollectKeepsCurrent() throws Exception {
+        Generations g = new Generations(out, 2);
+        for (int i = 1; i <= 4; i++) Files.createDirectory(out.resolve(Generations.PREFIX+i));
+        Files.createSymbolicLink(out.resolve(Generations.CURRENT), Paths.get("gen-1"));
+        Files.createDirectory(out.resolve("gen-x"));
+
+        assertThat(g.collect()).extracting(p -> p.getFileName().toString()).containsExactly("gen-2");
+        assertThat(list()).containsExactly("current", "gen-1", "gen-3", "gen-4", "gen-x");
+        assertThat(g.current()).isEqualTo(out.resolve("gen-1"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testKeepOne() throws Exception {
+        new Generations(out, 1);
+    }
+}
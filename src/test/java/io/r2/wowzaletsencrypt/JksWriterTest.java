@@ -0,0 +1,108 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests JksWriter against the JKS KeyStore provider
+ */
+public class JksWriterTest {
+
+    char[] password = Converter.DEFAULT_PASSWORD.toCharArray();
+
+    @DataProvider
+    public Object[][] lineages() {
+        return new Object[][] {
+                { "src/test/resources/letsencrypt/not-secure.r2.io" },     // PKCS#8 RSA key
+                { "src/test/resources/acme.sh/not-secure-acme.r2.io" },    // PKCS#1 RSA key
+                { "src/test/resources/ecdsa/not-secure-ec.r2.io" }         // SEC1 EC key
+        };
+    }
+
+    protected PemCertKey load(String dir) throws Exception {
+        return new PemCertKey(MultiFileConcatSource.fromFiles(
+                Paths.get(dir, "fullchain.pem"), Paths.get(dir, "privkey.pem")
+        ).buffer(), true);
+    }
+
+    protected static byte[] toByteArray(ByteBuffer b) {
+        byte[] result = new byte[b.remaining()];
+        b.get(result);
+        return result;
+    }
+
+    @Test(dataProvider = "lineages")
+    public void testSameAsProvider(String dir) throws Exception {
+        PemCertKey pem = load(dir);
+
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, password);
+        ks.setKeyEntry("server", pem.getPrivateKey(), password, pem.getCertificateChain());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ks.store(out, password);
+        byte[] expected = out.toByteArray();
+
+        // take the random parts (creation date and salt) from the provider's output
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(expected));
+        in.skipBytes(16);
+        in.readUTF();
+        long date = in.readLong();
+        byte[] protectedKey = new byte[in.readInt()];
+        in.readFully(protectedKey);
+        Der.Reader info = new Der.Reader(protectedKey).enter(Der.SEQUENCE);
+        byte[] algorithm = JksWriter.KEY_PROTECTOR_ALGORITHM;
+        if (!info.peekEquals(Der.SEQUENCE, Arrays.copyOfRange(algorithm, 2, algorithm.length))) {
+            throw new SkipException("The provider of this JDK encodes the key protector algorithm without NULL parameters");
+        }
+        info.skip();
+        byte[] salt = Arrays.copyOf(info.read(Der.OCTET_STRING), JksWriter.SALT_LENGTH);
+
+        byte[] jks = toByteArray(JksWriter.encode("server", pem.getPrivateKeyEncoded(), pem.getCertificateChainEncoded(),
+                password, date, salt));
+        assertThat(jks).isEqualTo(expected);
+    }
+
+    @Test(dataProvider = "lineages")
+    public void testRoundTrip(String dir) throws Exception {
+        PemCertKey pem = load(dir);
+        byte[] jks = toByteArray(JksWriter.encode("server", pem.getPrivateKeyEncoded(), pem.getCertificateChainEncoded(), password));
+
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(new ByteArrayInputStream(jks), password);
+        assertThat(Collections.list(ks.aliases())).containsExactly("server");
+        assertThat(ks.getKey("server", password).getEncoded()).isEqualTo(pem.getPrivateKey().getEncoded());
+        assertThat(ks.getCertificateChain("server")).containsExactly(pem.getCertificateChain());
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        PemCertKey pem = load("src/test/resources/letsencrypt/not-secure.r2.io");
+        byte[] jks = toByteArray(JksWriter.encode("server", pem.getPrivateKeyEncoded(), pem.getCertificateChainEncoded(), password));
+
+        KeyStore ks = KeyStore.getInstance("JKS");
+        assertThatThrownBy(() -> ks.load(new ByteArrayInputStream(jks), "wrong".toCharArray()))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        PemCertKey pem = load("src/test/resources/letsencrypt/not-secure.r2.io");
+        ByteBuffer first = JksWriter.encode("server", pem.getPrivateKeyEncoded(), pem.getCertificateChainEncoded(), password);
+        ByteBuffer second = JksWriter.encode("server", pem.getPrivateKeyEncoded(), pem.getCertificateChainEncoded(), password);
+        assertThat(second.array()).isSameAs(first.array());
+        assertThat(second.remaining()).isEqualTo(first.remaining());
+    }
+}
@@ -0,0 +1,71 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests output keystore format selection and PKCS12 parameters
+ */
+public class KeyStoreFormatTest {
+
+    @Test
+    public void testOf() throws Exception {
+        assertThat(KeyStoreFormat.of("jks").getType()).isEqualTo("JKS");
+        assertThat(KeyStoreFormat.of("jks").getExtension()).isEqualTo("jks");
+        assertThat(KeyStoreFormat.of("PKCS12").getType()).isEqualTo("PKCS12");
+        assertThat(KeyStoreFormat.of("PKCS12").getExtension()).isEqualTo("p12");
+        assertThat(KeyStoreFormat.of("PKCS12").newKeyStore().getType()).isEqualTo("PKCS12");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOfUnknown() throws Exception {
+        KeyStoreFormat.of("JCEKS");
+    }
+
+    @Test
+    public void testSet() throws Exception {
+        KeyStoreFormat f = KeyStoreFormat.pkcs12()
+                .set("macIterationCount", "10000")
+                .set("certProtectionAlgorithm", "NONE");
+        assertThat(f.getProperties()).containsEntry("macIterationCount", "10000");
+        assertThat(f.toString()).isEqualTo("PKCS12 certProtectionAlgorithm=NONE macIterationCount=10000");
+    }
+
+    @Test
+    public void testApplyRestore() throws Exception {
+        System.setProperty("keystore.pkcs12.macAlgorithm", "HmacPBESHA256");
+        try {
+            KeyStoreFormat f = KeyStoreFormat.pkcs12()
+                    .set("macIterationCount", "10000")
+                    .set("macAlgorithm", "HmacPBESHA1");
+            Map<String, String> previous = f.apply();
+            assertThat(System.getProperty("keystore.pkcs12.macIterationCount")).isEqualTo("10000");
+            assertThat(System.getProperty("keystore.pkcs12.macAlgorithm")).isEqualTo("HmacPBESHA1");
+
+            f.restore(previous);
+            assertThat(System.getProperty("keystore.pkcs12.macIterationCount")).isNull();
+            assertThat(System.getProperty("keystore.pkcs12.macAlgorithm")).isEqualTo("HmacPBESHA256");
+        }
+        finally {
+            System.clearProperty("keystore.pkcs12.macAlgorithm");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSetJks() throws Exception {
+        KeyStoreFormat.jks().set("macIterationCount", "10000");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSetUnknown() throws Exception {
+        KeyStoreFormat.pkcs12().set("saltLength", "16");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSetInvalidCount() throws Exception {
+        KeyStoreFormat.pkcs12().set("keyPbeIterationCount", "many");
+    }
+}
@@ -0,0 +1,79 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Render/load tests for the conversion manifest
+ */
+public class ManifestTest {
+
+    @Test
+    public void testRenderLoad() throws Exception {
+        Path dir = Files.createTempDirectory("wlmanifest");
+        try {
+            Manifest m = new Manifest();
+            Manifest.Entry e = new Manifest.Entry("example.com");
+            e.chainSize = 3000;
+            e.chainMtime = 1500000000000L;
+            e.keySize = 1700;
+            e.keyMtime = 1500000000001L;
+            e.inputDigest = Manifest.digest("input".getBytes(StandardCharsets.UTF_8));
+            e.jksDigest = Manifest.digest("jks".getBytes(StandardCharsets.UTF_8));
+            e.keyAlgorithm = "EC";
+            e.notAfter = 1507776000000L;
+            e.keyStore = "example.com-rsa";
+            e.domains = Arrays.asList("example.com", "www.example.com");
+            m.put(e);
+            m.setSettings("secret");
+            m.setOwned(Arrays.asList("example.com-rsa.jks", "old.example.com.jks"));
+            // as published by the converter
+            Files.write(dir.resolve(Manifest.FILE_NAME), m.render());
+
+            Manifest l = Manifest.load(dir);
+            assertThat(l.matchesSettings("secret")).isTrue();
+            assertThat(l.matchesSettings("other")).isFalse();
+            assertThat(l.entries()).hasSize(1);
+            assertThat(l.getOwned()).containsExactly("example.com-rsa.jks", "old.example.com.jks");
+
+            Manifest.Entry le = l.get("example.com");
+            assertThat(le).isNotNull();
+            assertThat(le.sameFileStats(e)).isTrue();
+            assertThat(le.inputDigest).isEqualTo(e.inputDigest);
+            assertThat(le.jksDigest).isEqualTo(e.jksDigest);
+            assertThat(le.keyAlgorithm).isEqualTo("EC");
+            assertThat(le.notAfter).isEqualTo(1507776000000L);
+            assertThat(le.keyStore).isEqualTo("example.com-rsa");
+            assertThat(le.domains).containsExactly("example.com", "www.example.com");
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testLoadMissingOrCorrupt() throws Exception {
+        Path dir = Files.createTempDirectory("wlmanifest");
+        try {
+            assertThat(Manifest.load(dir).entries()).isEmpty();
+
+            Files.write(dir.resolve(Manifest.FILE_NAME), "garbage\n".getBytes(StandardCharsets.UTF_8));
+            assertThat(Manifest.load(dir).entries()).isEmpty();
+            assertThat(Manifest.load(dir).matchesSettings("secret")).isFalse();
+        }
+        finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testHex() throws Exception {
+        assertThat(Manifest.hex(new byte[] { 0, 1, (byte)0xab, (byte)0xff })).isEqualTo("0001abff");
+    }
+}
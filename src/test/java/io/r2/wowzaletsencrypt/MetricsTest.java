@@ -0,0 +1,125 @@
+package io.r2.wowzaletsencrypt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests Metrics and the instrumentation of the converter
+ */
+public class MetricsTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        Metrics m = new Metrics();
+        long now = System.nanoTime();
+        m.record(Metrics.Phase.read, now);
+        m.record(Metrics.Phase.read, now-2000000L);      // 2 ms ago
+        m.add(Metrics.Counter.bytes_read, 100);
+        m.add(Metrics.Counter.bytes_read, 23);
+
+        assertThat(m.getCount(Metrics.Phase.read)).isEqualTo(2);
+        assertThat(m.getTotalNanos(Metrics.Phase.read)).isGreaterThanOrEqualTo(2000000L);
+        assertThat(m.getCount(Metrics.Phase.write)).isZero();
+        assertThat(m.get(Metrics.Counter.bytes_read)).isEqualTo(123);
+    }
+
+    @Test
+    public void testPrometheus() throws Exception {
+        Metrics m = new Metrics();
+        m.begin();
+        m.record(Metrics.Phase.encode, System.nanoTime()-2000000L);
+        m.add(Metrics.Counter.keystores_written, 1);
+        m.end(true);
+
+        String prom = m.toPrometheus();
+        // cumulative buckets
+        assertThat(prom).contains("wowza_letsencrypt_phase_seconds_bucket{phase=\"encode\",le=\"0.001\"} 0\n");
+        assertThat(prom).contains("wowza_letsencrypt_phase_seconds_bucket{phase=\"encode\",le=\"0.005\"} 1\n");
+        assertThat(prom).contains("wowza_letsencrypt_phase_seconds_bucket{phase=\"encode\",le=\"+Inf\"} 1\n");
+        assertThat(prom).contains("wowza_letsencrypt_phase_seconds_count{phase=\"encode\"} 1\n");
+        assertThat(prom).contains("wowza_letsencrypt_phase_seconds_count{phase=\"scan\"} 0\n");
+        assertThat(prom).contains("wowza_letsencrypt_keystores_written_total 1\n");
+        assertThat(prom).contains("wowza_letsencrypt_last_run_success 1\n");
+        // every sample line is name{labels} value
+        for (String line : prom.split("\n")) {
+            if (!line.startsWith("#")) assertThat(line).matches("[a-z_]+(\\{[^}]*\\})? [0-9.+Inf]+");
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        assertThat(Metrics.EVENTS).isInstanceOf(JfrPhaseEvents.class);
+
+        Path outDir = Files.createTempDirectory("wljfr");
+        Path file = outDir.resolve("recording.jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("io.r2.wowzaletsencrypt.Read").withThreshold(Duration.ZERO);
+                recording.enable("io.r2.wowzaletsencrypt.Parse").withThreshold(Duration.ZERO);
+                recording.enable("io.r2.wowzaletsencrypt.Write").withThreshold(Duration.ZERO);
+                recording.start();
+                Converter c = new Converter("src/test/resources/letsencrypt", outDir.toString());
+                assertThat(c.readCertificates()).isTrue();
+                assertThat(c.writeJKS()).isTrue();
+                recording.stop();
+                recording.dump(file);
+            }
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertThat(events).filteredOn(e -> e.getEventType().getName().equals("io.r2.wowzaletsencrypt.Read")).hasSize(3);
+            assertThat(events).filteredOn(e -> e.getEventType().getName().equals("io.r2.wowzaletsencrypt.Write")).hasSize(3);
+            RecordedEvent parse = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("io.r2.wowzaletsencrypt.Parse") &&
+                            e.getString("certID").equals("multi-1.not-secure.r2.io"))
+                    .findAny().get();
+            assertThat(parse.getLong("bytes")).isPositive();
+            assertThat(parse.getInt("sans")).isGreaterThan(1);
+        }
+        finally {
+            TestFiles.deleteRecursively(outDir);
+        }
+    }
+
+    @Test
+    public void testConverterReport() throws Exception {
+        Path outDir = Files.createTempDirectory("wlmetrics");
+        try {
+            Converter c = new Converter("src/test/resources/letsencrypt", outDir.toString());
+            Metrics m = c.getMetrics();
+            m.begin();
+            assertThat(c.readCertificates()).isTrue();
+            assertThat(c.writeJKS()).isTrue();
+            m.end(true);
+
+            Path json = outDir.resolve("report.json");
+            Path prom = outDir.resolve("converter.prom");
+            assertThat(m.writeReports(json, prom)).isTrue();
+            assertThat(prom).isRegularFile();
+
+            JsonNode report = new ObjectMapper().readTree(json.toFile());
+            assertThat(report.get("success").asBoolean()).isTrue();
+            assertThat(report.get("counters").get("lineages").asLong()).isEqualTo(3);
+            assertThat(report.get("counters").get("keystores_written").asLong()).isEqualTo(3);
+            assertThat(report.get("phases").get("scan").get("count").asLong()).isEqualTo(1);
+            assertThat(report.get("phases").get("read").get("count").asLong()).isEqualTo(3);
+            assertThat(report.get("phases").get("parse").get("count").asLong()).isEqualTo(3);
+            assertThat(report.get("phases").get("encode").get("count").asLong()).isEqualTo(3);
+            // every key is decoded (validated) when read
+            assertThat(report.get("phases").get("key_decode").get("count").asLong()).isEqualTo(3);
+        }
+        finally {
+            TestFiles.deleteRecursively(outDir);
+        }
+    }
+}
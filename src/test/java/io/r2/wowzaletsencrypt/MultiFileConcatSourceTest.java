@@ -7,10 +7,12 @@ import org.testng.annotations.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -109,6 +111,75 @@ public class MultiFileConcatSourceTest {
         assertThat(MultiFileConcatSource.empty().size()).isEqualTo(0);
     }
 
+    @Test
+    public void testBuffer() throws Exception {
+        MultiFileConcatSource s = MultiFileConcatSource.fromFiles(testPath);
+        ByteBuffer b = s.buffer();
+        assertThat(b.remaining()).isEqualTo(result.length);
+        assertThat(b.array()).isSameAs(s.buffer().array());
+        byte[] res = new byte[b.remaining()];
+        b.get(res);
+        assertThat(res).containsExactly(result);
+        assertThat(s.toByteArray()).containsExactly(result);
+    }
+
+    @Test
+    public void testBuildSnapshot() throws Exception {
+        MultiFileConcatSource s = MultiFileConcatSource.fromFiles(testPath);
+        InputStream in = s.build();
+        s.add(is(0));
+        byte[] res = new byte[1024];
+        assertThat(in.read(res)).isEqualTo(result.length);
+        assertThat(s.size()).isEqualTo(result.length+testStr[0].length());
+    }
+
+    @Test
+    public void testExactCapacity() throws Exception {
+        // a file and a stream filling the buffer exactly don't grow it
+        byte[] data = new byte[4096];
+        new Random(2).nextBytes(data);
+        Path p = Files.createTempFile("test-temp-exact", ".tmp");
+        try {
+            Files.write(p, data);
+            MultiFileConcatSource s = MultiFileConcatSource.fromFiles(p);
+            assertThat(s.buffer().array()).hasSize(data.length);
+            assertThat(s.toByteArray()).isEqualTo(data);
+
+            s = MultiFileConcatSource.empty().add(new ByteArrayInputStream(data));
+            assertThat(s.buffer().array()).hasSize(data.length);
+            assertThat(s.toByteArray()).isEqualTo(data);
+
+            // filling the rest of the buffer after a smaller file
+            s = MultiFileConcatSource.fromFiles(testPath[0])
+                    .add(new ByteArrayInputStream(data, 0, data.length - testStr[0].length()));
+            assertThat(s.buffer().array()).hasSize(data.length);
+        }
+        finally {
+            Files.delete(p);
+        }
+    }
+
+    @Test
+    public void testLargeFile() throws Exception {
+        // above the memory mapping threshold, between small files
+        byte[] large = new byte[(int) MultiFileConcatSource.MAP_THRESHOLD + 12345];
+        new Random(1).nextBytes(large);
+        Path p = Files.createTempFile("test-temp-large", ".tmp");
+        try {
+            Files.write(p, large);
+            MultiFileConcatSource s = MultiFileConcatSource.fromFiles(testPath[0], p, testPath[1]);
+
+            ByteArrayOutputStream o = new ByteArrayOutputStream();
+            o.write(testStr[0].getBytes(StandardCharsets.UTF_8));
+            o.write(large);
+            o.write(testStr[1].getBytes(StandardCharsets.UTF_8));
+            assertThat(s.toByteArray()).isEqualTo(o.toByteArray());
+        }
+        finally {
+            Files.delete(p);
+        }
+    }
+
     @Test
     public void testFromFiles_file() throws Exception {
         validate(
@@ -0,0 +1,54 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the PKCS#1 to PKCS#8 conversion against the encoding of the JDK, for various key sizes
+ */
+public class PKCS1ConverterTest {
+
+    @DataProvider
+    public Object[][] keySizes() {
+        // odd sizes too, the lengths of the DER elements cross byte boundaries differently
+        return new Object[][] { { 512 }, { 1000 }, { 1024 }, { 2048 }, { 3000 }, { 4096 } };
+    }
+
+    @Test(dataProvider = "keySizes")
+    public void testToPKCS8(int keySize) throws Exception {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(keySize);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(keySize, random);
+        PrivateKey key = kpg.generateKeyPair().getPrivate();
+
+        byte[] pkcs8 = key.getEncoded();
+        byte[] pkcs1 = FleetGenerator.pkcs1(pkcs8);
+
+        byte[] converted = PKCS1Converter.toPKCS8(pkcs1);
+        assertThat(converted).isEqualTo(pkcs8);
+        assertThat(KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(converted))).isEqualTo(key);
+    }
+
+    @Test
+    public void testDerLengths() throws Exception {
+        for (int len : new int[] { 0, 1, 0x7f, 0x80, 0xff, 0x100, 0xffff, 0x10000 }) {
+            byte[] content = new byte[len];
+            if (len > 0) content[len-1] = 0x5a;
+            byte[] encoded = Der.encode(Der.OCTET_STRING, content);
+            assertThat(encoded).hasSize(Der.length(len));
+
+            Der.Reader r = new Der.Reader(encoded);
+            assertThat(r.read(Der.OCTET_STRING)).isEqualTo(content);
+            assertThat(r.hasMore()).isFalse();
+        }
+    }
+}
@@ -5,8 +5,15 @@ import org.testng.annotations.Test;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.Key;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -72,6 +79,89 @@ public class PemCertKeyTest {
         );
     }
 
+    @Test
+    public void testKeyEC() throws Exception {
+        doTestKey("src/test/resources/pem/ec-key.pem", "EC");
+    }
+
+    @Test
+    public void testKeyECPKCS8() throws Exception {
+        doTestKey("src/test/resources/pem/ec-key-pkcs8.pem", "EC");
+    }
+
+    @Test
+    public void testKeyECWithParameters() throws Exception {
+        doTestKey("src/test/resources/pem/ec-key-with-params.pem", "EC");
+    }
+
+    @Test
+    public void testCertKeyEC() throws Exception {
+        PemCertKey t = new PemCertKey(MultiFileConcatSource.fromFiles(
+                "src/test/resources/pem/ec-fullchain.pem",
+                "src/test/resources/pem/ec-key.pem"
+        ).build());
+
+        assertThat(t.getCertificateChain()).hasSize(2);
+        assertThat(t.getCertificate().getPublicKey().getAlgorithm()).isEqualTo("EC");
+        assertThat(t.getPrivateKey().getAlgorithm()).isEqualTo("EC");
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        byte[] pem = MultiFileConcatSource.fromFiles(
+                "src/test/resources/pem/acme-fullchain.pem",
+                "src/test/resources/pem/acme-key.pem"
+        ).toByteArray();
+        PemCertKey eager = new PemCertKey(ByteBuffer.wrap(pem));
+        PemCertKey lazy = new PemCertKey(ByteBuffer.wrap(pem), true);
+
+        assertThat(lazy.getCertificate()).isEqualTo(eager.getCertificate());
+        assertThat(lazy.hasKey()).isTrue();
+        assertThat(lazy.getPrivateKeyAlgorithm()).isEqualTo("RSA");
+        assertThat(lazy.privateKey).isNull();
+        assertThat(lazy.certificateChainPacked).isNull();
+
+        // decoded once, on first use from any thread
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Key>> keys = new ArrayList<>();
+            for (int i = 0; i < 8; i++) keys.add(pool.submit(lazy::getPrivateKey));
+            Key key = keys.get(0).get();
+            for (Future<Key> k : keys) assertThat(k.get()).isSameAs(key);
+            assertThat(key.getEncoded()).isEqualTo(eager.getPrivateKey().getEncoded());
+        }
+        finally {
+            pool.shutdown();
+        }
+        assertThat(lazy.getCertificateChain()).containsExactly(eager.getCertificateChain());
+        assertThat(lazy.getCertificateChain()).isSameAs(lazy.getCertificateChain());
+    }
+
+    @Test
+    public void testIntermediateCache() throws Exception {
+        CertificateCache cache = CertificateCache.INTERMEDIATES;
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+
+        PemCertKey a = new PemCertKey(new FileInputStream("src/test/resources/letsencrypt/not-secure.r2.io/fullchain.pem"));
+        PemCertKey b = new PemCertKey(new FileInputStream("src/test/resources/letsencrypt/single.not-secure.r2.io/fullchain.pem"));
+
+        // same intermediate instance, different leaf
+        assertThat(a.getCertificateChain()[1]).isSameAs(b.getCertificateChain()[1]);
+        assertThat(a.getCertificate()).isNotEqualTo(b.getCertificate());
+        assertThat(cache.getHits()).isGreaterThan(hits);
+        assertThat(cache.getHits()+cache.getMisses()).isEqualTo(hits+misses+2);
+    }
+
+    @Test
+    public void testCacheLimit() throws Exception {
+        byte[] der = new PemCertKey(new FileInputStream("src/test/resources/pem/cert.pem")).getCertificateEncoded();
+        CertificateCache cache = new CertificateCache(0);
+        assertThat(cache.get(der)).isEqualTo(cache.get(der));
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
     public void doTestCert(String fn) throws Exception {
         InputStream in = new FileInputStream(fn);
         PemCertKey t = new PemCertKey(in);
@@ -94,6 +184,10 @@ public class PemCertKeyTest {
     }
 
     public void doTestKey(String fn) throws Exception {
+        doTestKey(fn, "RSA");
+    }
+
+    public void doTestKey(String fn, String algorithm) throws Exception {
         InputStream in = new FileInputStream(fn);
         PemCertKey t = new PemCertKey(in);
 
@@ -105,7 +199,7 @@ public class PemCertKeyTest {
 
         assertThat(t.hasKey()).isTrue();
         assertThat(t.getPrivateKey().getFormat()).isEqualTo("PKCS#8");
-        assertThat(t.getPrivateKey().getAlgorithm()).isEqualTo("RSA");
+        assertThat(t.getPrivateKey().getAlgorithm()).isEqualTo(algorithm);
 
         assertThat(t.getCreationDate()).isCloseTo(new Date(), 5000);
     }
@@ -0,0 +1,92 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the output directory lock and the coalescing of the queued requests
+ */
+public class RunLockTest {
+
+    Path dir;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("wllock");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        TestFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testSingleRun() throws Exception {
+        try (RunLock lock = new RunLock(dir)) {
+            assertThat(lock.request(Collections.singleton("a.r2.io"))).isTrue();
+            assertThat(lock.next()).containsExactly("a.r2.io");
+            assertThat(lock.isLocked()).isTrue();
+            assertThat(lock.next()).isNull();
+            assertThat(lock.isLocked()).isFalse();
+        }
+        // released: the next run gets the lock
+        try (RunLock lock = new RunLock(dir)) {
+            assertThat(lock.request(null)).isTrue();
+            assertThat(RunLock.dirty(lock.next())).isNull();
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        try (RunLock active = new RunLock(dir)) {
+            assertThat(active.request(null)).isTrue();
+            assertThat(active.next()).containsExactly(RunLock.ALL);
+
+            // requests during the first pass are queued
+            for (String certID : Arrays.asList("a.r2.io", "b.r2.io", "a.r2.io")) {
+                try (RunLock hook = new RunLock(dir)) {
+                    assertThat(hook.request(Collections.singleton(certID))).isFalse();
+                    assertThat(hook.isLocked()).isFalse();
+                }
+            }
+
+            // and done in a single pass
+            assertThat(active.next()).containsExactly("a.r2.io", "b.r2.io");
+            assertThat(active.next()).isNull();
+        }
+        assertThat(dir.resolve(RunLock.PENDING_FILE)).hasContent("");
+    }
+
+    @Test
+    public void testPendingKept() throws Exception {
+        try (RunLock active = new RunLock(dir)) {
+            assertThat(active.request(null)).isTrue();
+            try (RunLock hook = new RunLock(dir)) {
+                assertThat(hook.request(Collections.singleton("a.r2.io"))).isFalse();
+            }
+            // the active run fails without taking the queued requests
+        }
+
+        // the next run takes them with its own request
+        try (RunLock lock = new RunLock(dir)) {
+            assertThat(lock.request(Collections.singleton("b.r2.io"))).isTrue();
+            assertThat(lock.next()).containsExactly("b.r2.io", "a.r2.io");
+            assertThat(lock.next()).isNull();
+        }
+    }
+
+    @Test
+    public void testDirty() throws Exception {
+        assertThat(RunLock.dirty(new HashSet<>(Arrays.asList("a.r2.io", RunLock.ALL)))).isNull();
+        assertThat(RunLock.dirty(Collections.singleton("a.r2.io"))).containsExactly("a.r2.io");
+    }
+}
@@ -0,0 +1,157 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the server mode with requests over the loopback interface
+ */
+public class ServerTest {
+
+    Path dir;
+    Path in;
+    Path out;
+    Server server;
+    Thread serverThread;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("wlserver");
+        in = Files.createDirectory(dir.resolve("in"));
+        out = Files.createDirectory(dir.resolve("out"));
+        try (Stream<Path> files = Files.walk(Paths.get("src/test/resources/letsencrypt"))) {
+            Path source = Paths.get("src/test/resources/letsencrypt");
+            for (Path p : files.filter(p -> !p.equals(source)).collect(Collectors.toList())) {
+                Files.copy(p, in.resolve(source.relativize(p).toString()));
+            }
+        }
+
+        server = new Server(in.toString(), out.toString(), Converter.DEFAULT_PASSWORD, 0);
+        server.bind();
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (Exception e) {
+                // closed
+            }
+        });
+        serverThread.start();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        server.close();
+        serverThread.join(10000);
+        TestFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        String answer = Server.send(server.getLocalPort(), "full");
+        assertThat(answer).isEqualTo("0 OK");
+        assertThat(out.resolve("jksmap.txt")).isRegularFile();
+        assertThat(out.resolve("not-secure.r2.io.jks")).isRegularFile();
+    }
+
+    @Test(dependsOnMethods = "testFull")
+    public void testLineage() throws Exception {
+        Files.delete(out.resolve("single.not-secure.r2.io.jks"));
+        assertThat(Server.send(server.getLocalPort(), "lineage single.not-secure.r2.io")).isEqualTo("0 OK");
+        assertThat(out.resolve("single.not-secure.r2.io.jks")).isRegularFile();
+
+        // by directory, as sent by the client
+        Files.delete(out.resolve("single.not-secure.r2.io.jks"));
+        String command = "lineage "+in.resolve("single.not-secure.r2.io").toAbsolutePath();
+        assertThat(Server.send(server.getLocalPort(), command)).isEqualTo("0 OK");
+        assertThat(out.resolve("single.not-secure.r2.io.jks")).isRegularFile();
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String answer = Server.send(server.getLocalPort(), "lineage ../out");
+        assertThat(Server.status(answer)).isEqualTo(1);
+        answer = Server.send(server.getLocalPort(), "shutdown");
+        assertThat(answer).isEqualTo("1 Unknown command");
+        assertThat(Server.status("garbage")).isEqualTo(4);
+    }
+
+    @Test
+    public void testConversionError() throws Exception {
+        // the first conversion fails unexpectedly, the worker keeps converting (on persistent worker threads)
+        AtomicInteger conversions = new AtomicInteger();
+        Server failing = new Server(in.toString(), out.toString(), Converter.DEFAULT_PASSWORD, 0) {
+            @Override
+            protected String convert(Set<String> dirty, boolean incremental) {
+                if (conversions.incrementAndGet() == 1) throw new IllegalStateException("test");
+                return super.convert(dirty, incremental);
+            }
+        };
+        failing.setThreads(2);
+        failing.bind();
+        Thread t = new Thread(() -> {
+            try {
+                failing.serve();
+            }
+            catch (Exception e) {
+                // closed
+            }
+        });
+        t.start();
+        try {
+            assertThat(Server.send(failing.getLocalPort(), "full")).isEqualTo("4 Conversion error");
+            assertThat(Server.send(failing.getLocalPort(), "full")).isEqualTo("0 OK");
+            assertThat(Server.send(failing.getLocalPort(), "lineage not-secure.r2.io")).isEqualTo("0 OK");
+            assertThat(failing.workers.isShutdown()).isFalse();
+        }
+        finally {
+            failing.close();
+            t.join(10000);
+        }
+    }
+
+    @Test
+    public void testQueued() throws Exception {
+        // another converter is running
+        try (RunLock lock = new RunLock(out)) {
+            assertThat(lock.request(Collections.singleton("not-secure.r2.io"))).isTrue();
+            String answer = Server.send(server.getLocalPort(), "full");
+            assertThat(Server.status(answer)).isEqualTo(Server.QUEUED);
+            // the request is left for the other converter
+            assertThat(lock.next()).containsExactly("not-secure.r2.io", RunLock.ALL);
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // more clients than handler threads
+        Thread[] clients = new Thread[Server.CLIENT_THREADS*2];
+        String[] answers = new String[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            int n = i;
+            clients[i] = new Thread(() -> {
+                try {
+                    answers[n] = Server.send(server.getLocalPort(), n % 2 == 0 ? "full" : "lineage not-secure.r2.io");
+                }
+                catch (Exception e) {
+                    answers[n] = e.toString();
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread t : clients) t.join(30000);
+        assertThat(answers).containsOnly("0 OK");
+    }
+}
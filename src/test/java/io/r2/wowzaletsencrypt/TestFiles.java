@@ -0,0 +1,28 @@
+package io.r2.wowzaletsencrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * File helpers of the tests
+ */
+public class TestFiles {
+
+    /**
+     * Deletes a directory with everything in it (files which can't be deleted are left)
+     * @param dir the directory, nothing happens if it does not exist
+     * @throws IOException if the directory can't be walked
+     */
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+}
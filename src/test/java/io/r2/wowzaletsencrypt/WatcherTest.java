@@ -0,0 +1,197 @@
+package io.r2.wowzaletsencrypt;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests the watch mode: event processing, debouncing and retrying failed conversions
+ */
+public class WatcherTest {
+
+    Path dir;
+    Path in;
+    Path out;
+    Thread watcherThread;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("wlwatcher");
+        in = Files.createDirectory(dir.resolve("in"));
+        out = Files.createDirectory(dir.resolve("out"));
+        Path source = Paths.get("src/test/resources/letsencrypt");
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path p : files.filter(p -> !p.equals(source)).collect(Collectors.toList())) {
+                Files.copy(p, in.resolve(source.relativize(p).toString()));
+            }
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+            watcherThread.join(10000);
+            watcherThread = null;
+        }
+        TestFiles.deleteRecursively(dir);
+    }
+
+    /**
+     * Records the conversion passes instead of converting
+     */
+    static class RecordingWatcher extends Watcher {
+        /** certificate IDs of the passes, ALL for a full conversion */
+        final BlockingQueue<Set<String>> passes = new LinkedBlockingQueue<>();
+        /** results of the next passes, successful when empty */
+        final ConcurrentLinkedDeque<Boolean> results = new ConcurrentLinkedDeque<>();
+
+        RecordingWatcher(Path in, Path out, Boolean... results) {
+            super(in.toString(), out.toString(), Converter.DEFAULT_PASSWORD);
+            this.results.addAll(Arrays.asList(results));
+        }
+
+        @Override
+        protected boolean convertPass(Set<String> dirty, boolean incremental) {
+            passes.add(dirty == null ? Collections.singleton(RunLock.ALL) : new TreeSet<>(dirty));
+            Boolean result = results.poll();
+            return result == null || result;
+        }
+
+        Set<String> nextPass() throws InterruptedException {
+            return passes.poll(10, TimeUnit.SECONDS);
+        }
+    }
+
+    protected void start(Watcher w) {
+        watcherThread = new Thread(() -> {
+            try {
+                w.run(true);
+            }
+            catch (InterruptedException e) {
+                // stopped
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        watcherThread.start();
+    }
+
+    protected void touch(String certID, String file) throws Exception {
+        Files.write(in.resolve(certID).resolve(file), "\n".getBytes(), StandardOpenOption.APPEND);
+    }
+
+    protected static WatchKey key(Watcher w, Path watched, WatchEvent<?>... events) {
+        WatchKey key = new WatchKey() {
+            public boolean isValid() { return true; }
+            public List<WatchEvent<?>> pollEvents() { return Arrays.asList(events); }
+            public boolean reset() { return true; }
+            public void cancel() { }
+            public Watchable watchable() { return watched; }
+        };
+        w.keys.put(key, watched);
+        return key;
+    }
+
+    protected static WatchEvent<?> event(WatchEvent.Kind<?> kind, String name) {
+        return new WatchEvent<Object>() {
+            @SuppressWarnings("unchecked")
+            public Kind<Object> kind() { return (Kind<Object>) kind; }
+            public int count() { return 1; }
+            public Object context() { return name == null ? null : Paths.get(name); }
+        };
+    }
+
+    @Test
+    public void testProcessEvents() throws Exception {
+        Watcher w = new Watcher(in.toString(), out.toString(), Converter.DEFAULT_PASSWORD);
+        try (WatchService ws = in.getFileSystem().newWatchService()) {
+            w.watchService = ws;
+            Set<String> dirty = new TreeSet<>();
+
+            // lineage added and removed: the new one is watched
+            Files.createDirectory(in.resolve("new.r2.io"));
+            assertThat(w.processEvents(key(w, in, event(ENTRY_CREATE, "new.r2.io"),
+                    event(ENTRY_DELETE, "single.not-secure.r2.io")), dirty)).isFalse();
+            assertThat(dirty).containsExactly("new.r2.io", "single.not-secure.r2.io");
+            assertThat(w.keys).containsValue(in.resolve("new.r2.io"));
+
+            // input files modified, other files are ignored
+            dirty.clear();
+            assertThat(w.processEvents(key(w, in.resolve("not-secure.r2.io"), event(ENTRY_MODIFY, "fullchain.pem"),
+                    event(ENTRY_MODIFY, "README")), dirty)).isFalse();
+            assertThat(w.processEvents(key(w, in.resolve("multi-1.not-secure.r2.io"), event(ENTRY_MODIFY, "privkey.pem")),
+                    dirty)).isFalse();
+            assertThat(w.processEvents(key(w, in.resolve("single.not-secure.r2.io"), event(ENTRY_MODIFY, "cert.pem")),
+                    dirty)).isFalse();
+            assertThat(dirty).containsExactly("multi-1.not-secure.r2.io", "not-secure.r2.io");
+
+            // events lost: everything is checked
+            assertThat(w.processEvents(key(w, in, event(OVERFLOW, null)), dirty)).isTrue();
+        }
+    }
+
+    @Test
+    public void testDebounce() throws Exception {
+        RecordingWatcher w = new RecordingWatcher(in, out);
+        w.setDebounceMillis(500);
+        start(w);
+        assertThat(w.nextPass()).containsExactly(RunLock.ALL);
+
+        // changes within the debounce period are converted together, after the period
+        touch("not-secure.r2.io", "fullchain.pem");
+        Thread.sleep(200);
+        touch("single.not-secure.r2.io", "privkey.pem");
+        long last = System.nanoTime();
+        assertThat(w.nextPass()).containsExactly("not-secure.r2.io", "single.not-secure.r2.io");
+        assertThat((System.nanoTime()-last)/1000000).isGreaterThanOrEqualTo(400);
+        assertThat(w.passes.poll(1, TimeUnit.SECONDS)).isNull();
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        // the initial conversion succeeds, the conversion of the change fails once
+        RecordingWatcher w = new RecordingWatcher(in, out, true, false);
+        w.setDebounceMillis(100);
+        w.setRetryMillis(300);
+        start(w);
+        assertThat(w.nextPass()).containsExactly(RunLock.ALL);
+
+        touch("not-secure.r2.io", "fullchain.pem");
+        assertThat(w.nextPass()).containsExactly("not-secure.r2.io");
+        // retried without further changes, then nothing to do
+        assertThat(w.nextPass()).containsExactly("not-secure.r2.io");
+        assertThat(w.passes.poll(1, TimeUnit.SECONDS)).isNull();
+    }
+
+    @Test
+    public void testRetryFull() throws Exception {
+        // failed initial conversion: everything is retried together with the next change
+        RecordingWatcher w = new RecordingWatcher(in, out, false);
+        w.setDebounceMillis(100);
+        w.setRetryMillis(60000);
+        start(w);
+        assertThat(w.nextPass()).containsExactly(RunLock.ALL);
+
+        touch("not-secure.r2.io", "fullchain.pem");
+        assertThat(w.nextPass()).containsExactly(RunLock.ALL);
+        assertThat(w.passes.poll(1, TimeUnit.SECONDS)).isNull();
+    }
+}